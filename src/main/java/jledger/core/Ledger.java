@@ -65,6 +65,17 @@ public interface Ledger<K,V extends Value.Interned<K, V>> {
 	 * @return
 	 */
 	public V add(Value value);
+
+	/**
+	 * Add a new value to the ledger which is intended to become the next value of
+	 * a given key. This permits the ledger to store the value more compactly, for
+	 * example as a delta against the current value of the key.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public V add(K key, Value value);
 	
 	/**
 	 * Apply a sequence of key/value assignments as a single atomic transaction.
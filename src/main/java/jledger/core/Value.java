@@ -13,6 +13,8 @@
 // limitations under the License.
 package jledger.core;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents an immutable data blob which can be written into a ledger. Values
  * are immutable data structures which, when written, construct new values.
@@ -60,16 +62,27 @@ public interface Value {
 	public Delta replace(int index, int length, byte[] bytes);
 	
 	/**
-	 * Starting from a given position, read the contents of this value into a given
-	 * byte array. If the array is shorter than the length of this value, then the
-	 * result is truncated. If the array is longer then the extra bytes are left
-	 * untouched.
+	 * Starting from a given position, read a given number of bytes from this value
+	 * into a given byte array. The section being read must be entirely within
+	 * bounds, as must the section of the array being written.
 	 *
-	 * @param index     starting position to read from.
-	 * @param bytes array to write data into.
-	 * @return
+	 * @param index  starting position to read from.
+	 * @param bytes  array to write data into.
+	 * @param offset starting position within the array to write data.
+	 * @param length number of bytes to read.
+	 */
+	public void read(int index, byte[] bytes, int offset, int length);
+
+	/**
+	 * Starting from a given position, read bytes from this value into a given
+	 * buffer until it has no remaining space. The buffer's position is advanced by
+	 * the number of bytes read, and the section being read must be entirely within
+	 * bounds.
+	 *
+	 * @param index  starting position to read from.
+	 * @param buffer buffer to write data into.
 	 */
-	//public void read(int index, byte[] bytes);
+	public void read(int index, ByteBuffer buffer);
 
 	/**
 	 * Write a given byte to a given position within this value. The index must be
@@ -0,0 +1,259 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * Reads values encoded as for <code>BinaryOutputStream</code> directly out of
+ * a <code>ByteBuffer</code>, such as a <code>MappedByteBuffer</code>. Unlike
+ * <code>BinaryInputStream</code>, nothing is copied out of the buffer and there
+ * is no stream in between. Bits are loaded into a 64-bit window up to eight
+ * bytes at a time, and fields are extracted from it with shifts and masks.
+ * </p>
+ * <p>
+ * The reader maintains its own position, and only ever accesses the buffer
+ * using absolute operations. Hence, the buffer's own position is unaffected and
+ * any number of readers can share it. The reader can be moved to any byte
+ * position, and fixed-width values can be read at an absolute position without
+ * moving it. Running off the end of the buffer throws a
+ * <code>BufferUnderflowException</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryBufferReader {
+	/**
+	 * A little-endian view of the underlying buffer, such that loading eight bytes
+	 * at once places the first byte in the least significant bits.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * The position of the next byte to be loaded into <code>value</code>.
+	 */
+	private int position;
+	/**
+	 * Bits loaded but not yet consumed. The next bit to be consumed is the least
+	 * significant.
+	 */
+	private long value;
+	/**
+	 * The number of bits in <code>value</code>. This is a multiple of 8 whenever
+	 * the reader is byte aligned.
+	 */
+	private int count;
+
+	public BinaryBufferReader(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.position = buffer.position();
+	}
+
+	/**
+	 * Get the position of the byte containing the next bit to be read.
+	 *
+	 * @return
+	 */
+	public int position() {
+		return position - ((count + 7) >> 3);
+	}
+
+	/**
+	 * Move this reader to a given byte position, discarding any partially read
+	 * byte.
+	 *
+	 * @param position
+	 */
+	public void position(int position) {
+		if (position < 0 || position > buffer.limit()) {
+			throw new IllegalArgumentException("invalid position (" + position + ")");
+		}
+		this.position = position;
+		this.value = 0;
+		this.count = 0;
+	}
+
+	/**
+	 * Get the number of bits remaining to be read.
+	 *
+	 * @return
+	 */
+	public long remaining() {
+		return ((long) (buffer.limit() - position) << 3) + count;
+	}
+
+	/**
+	 * Get a view of a given region of the underlying buffer, without copying.
+	 *
+	 * @param offset Position of first byte in region.
+	 * @param length Number of bytes in region.
+	 * @return
+	 */
+	public ByteBuffer slice(int offset, int length) {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		b.limit(offset + length);
+		b.position(offset);
+		return b.slice();
+	}
+
+	// =========================================================
+	// Absolute Reads
+	// =========================================================
+
+	/**
+	 * Read an unsigned 8bit integer at a given byte position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int read_u8(int index) {
+		return buffer.get(index) & 0xFF;
+	}
+
+	/**
+	 * Read an unsigned 16bit big-endian integer at a given byte position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int read_u16(int index) {
+		return Short.reverseBytes(buffer.getShort(index)) & 0xFFFF;
+	}
+
+	/**
+	 * Read an unsigned 32bit big-endian integer at a given byte position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public long read_u32(int index) {
+		return Integer.reverseBytes(buffer.getInt(index)) & 0xFFFFFFFFL;
+	}
+
+	// =========================================================
+	// Relative Reads
+	// =========================================================
+
+	public int read_u8() {
+		return read_un(8);
+	}
+
+	public int read_u16() {
+		return (read_u8() << 8) | read_u8();
+	}
+
+	public long read_u32() {
+		return ((long) read_u16() << 16) | read_u16();
+	}
+
+	public int read_un(int n) {
+		if (count < n) {
+			refill(n);
+		}
+		int r = (int) (value & (0xFFFFFFFFL >>> (32 - n)));
+		value = value >>> n;
+		count = count - n;
+		return r;
+	}
+
+	public int read_uv() {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			if (count < 4) {
+				refill(4);
+			}
+			int w = (int) this.value & 15;
+			this.value = this.value >>> 4;
+			count = count - 4;
+			value = ((w & 7) << shift) | value;
+			shift = shift + 3;
+			if ((w & 8) == 0) {
+				return value;
+			}
+		}
+	}
+
+	public boolean read_bit() {
+		return read_un(1) != 0;
+	}
+
+	/**
+	 * Read a sequence of bytes into a given array. When byte aligned, this is a
+	 * single bulk copy.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	public void read(byte[] bytes, int offset, int length) {
+		final int end = offset + length;
+		if ((count & 7) != 0) {
+			// Not byte aligned, so every byte must be shifted
+			while (offset < end) {
+				bytes[offset++] = (byte) read_un(8);
+			}
+		} else {
+			// Take whole bytes from the window first
+			while (offset < end && count > 0) {
+				bytes[offset++] = (byte) value;
+				value = value >>> 8;
+				count = count - 8;
+			}
+			int n = end - offset;
+			ByteBuffer b = buffer.duplicate();
+			b.position(position);
+			b.get(bytes, offset, n);
+			position += n;
+		}
+	}
+
+	public void pad_u8() {
+		// Discard remaining bits of the current byte
+		int n = count & 7;
+		value = value >>> n;
+		count = count - n;
+	}
+
+	/**
+	 * Load as many bytes as will fit into the window.
+	 *
+	 * @param n The number of bits required.
+	 */
+	private void refill(int n) {
+		final int limit = buffer.limit();
+		// Number of whole bytes which fit into the window
+		int k = (64 - count) >> 3;
+		if ((limit - position) >= 8) {
+			long w = buffer.getLong(position);
+			if (k < 8) {
+				w &= (1L << (k << 3)) - 1;
+			}
+			value |= w << count;
+		} else {
+			k = Math.min(k, limit - position);
+			for (int i = 0; i != k; ++i) {
+				value |= (long) (buffer.get(position + i) & 0xFF) << (count + (i << 3));
+			}
+		}
+		position += k;
+		count += k << 3;
+		if (count < n) {
+			throw new BufferUnderflowException();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.io;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values directly into a <code>ByteBuffer</code> (such as a
+ * <code>MappedByteBuffer</code>), using the same encoding as
+ * <code>BinaryOutputStream</code>. Pending bits are accumulated in a 64-bit
+ * word, and whole bytes are stored into the buffer as they become available.
+ * As for <code>BinaryBufferReader</code>, the writer maintains its own position
+ * and only accesses the buffer using absolute operations. Running off the end
+ * of the buffer throws a <code>BufferOverflowException</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BinaryBufferWriter {
+	private final ByteBuffer buffer;
+	/**
+	 * The position of the next byte to be stored.
+	 */
+	private int position;
+	/**
+	 * Bits written but not yet stored. The first such bit is the least
+	 * significant.
+	 */
+	private long value;
+	/**
+	 * The number of bits in <code>value</code>, which is always less than 8
+	 * between operations.
+	 */
+	private int count;
+
+	public BinaryBufferWriter(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.position = buffer.position();
+	}
+
+	/**
+	 * Get the position of the next byte to be stored. Any pending bits will be
+	 * stored at this position.
+	 *
+	 * @return
+	 */
+	public int position() {
+		return position;
+	}
+
+	public void write_u8(int w) {
+		if (count == 0) {
+			put(w);
+		} else {
+			write_un(w & 0xFF, 8);
+		}
+	}
+
+	public void write_u16(int w) {
+		write_u8((w >> 8) & 0xFF);
+		write_u8(w & 0xFF);
+	}
+
+	public void write_u32(int w) {
+		write_u16(w >>> 16);
+		write_u16(w);
+	}
+
+	/**
+	 * Write an unsigned integer value using a variable amount of space, as for
+	 * <code>BinaryOutputStream.write_uv()</code>.
+	 *
+	 * @param w
+	 */
+	public void write_uv(int w) {
+		if (w < 0) {
+			throw new IllegalArgumentException("cannot write negative number in a variable amount of space");
+		}
+		long bits = 0;
+		int n = 0;
+		do {
+			long t = w & 7;
+			w = w >> 3;
+			if (w != 0) {
+				t |= 8;
+			}
+			bits |= t << n;
+			n = n + 4;
+		} while (w != 0);
+		write_bits(bits, n);
+	}
+
+	public void write_un(int bits, int n) {
+		write_bits(bits & (0xFFFFFFFFL >>> (32 - n)), n);
+	}
+
+	public void write_bit(boolean bit) {
+		write_bits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Write a sequence of bytes. When byte aligned, this is a single bulk copy.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	public void write(byte[] bytes, int offset, int length) {
+		if (count != 0) {
+			// Not byte aligned, so every byte must be shifted
+			for (int end = offset + length; offset < end; ++offset) {
+				write_un(bytes[offset] & 0xFF, 8);
+			}
+		} else {
+			if (length > (buffer.limit() - position)) {
+				throw new BufferOverflowException();
+			}
+			ByteBuffer b = buffer.duplicate();
+			b.position(position);
+			b.put(bytes, offset, length);
+			position += length;
+		}
+	}
+
+	/**
+	 * Pad out to the nearest byte boundary with zeros.
+	 */
+	public void pad_u8() {
+		if (count > 0) {
+			put((int) value);
+			value = 0;
+			count = 0;
+		}
+	}
+
+	/**
+	 * Pad out to the nearest byte boundary with ones, as for
+	 * <code>BinaryOutputStream.flush()</code>.
+	 */
+	public void flush() {
+		if (count > 0) {
+			put((int) value | (0xFF << count));
+			value = 0;
+			count = 0;
+		}
+	}
+
+	private void write_bits(long bits, int n) {
+		long v = value | (bits << count);
+		int c = count + n;
+		while (c >= 8) {
+			put((int) v);
+			v = v >>> 8;
+			c = c - 8;
+		}
+		value = v;
+		count = c;
+	}
+
+	private void put(int b) {
+		if (position >= buffer.limit()) {
+			throw new BufferOverflowException();
+		}
+		buffer.put(position++, (byte) b);
+	}
+}
@@ -15,46 +15,100 @@ package jledger.io;
 
 import java.io.*;
 
+/**
+ * An input stream which supports reading values using an arbitrary number of
+ * bits, as written by <code>BinaryOutputStream</code>. Bytes are read from the
+ * underlying stream in blocks into an internal buffer, from which a 64-bit
+ * window of bits is refilled. Fields are then extracted from the window with
+ * shifts and masks, rather than one bit at a time.
+ *
+ * @author David J. Pearce
+ *
+ */
 public class BinaryInputStream extends InputStream {
+	/**
+	 * The size of the internal buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	protected InputStream input;
-	protected int value;
+	/**
+	 * Bits read but not yet consumed. The next bit to be consumed is the least
+	 * significant.
+	 */
+	protected long value;
+	/**
+	 * The number of bits in <code>value</code>. This is a multiple of 8 whenever
+	 * the stream is byte aligned.
+	 */
 	protected int count;
+	/**
+	 * Bytes read from the underlying stream but not yet moved into
+	 * <code>value</code>.
+	 */
+	private final byte[] buffer;
+	/**
+	 * The position of the next byte in <code>buffer</code>.
+	 */
+	private int position;
+	/**
+	 * The number of active bytes in <code>buffer</code>.
+	 */
+	private int limit;
 
 	public BinaryInputStream(InputStream input) {
 		this.input = input;
+		this.buffer = new byte[BUFFER_SIZE];
 	}
 
 	@Override
 	public int read() throws IOException {
-		if(count == 0) {
-			return input.read();
-		} else {
-			return read_un(8);
+		if (count < 8 && !refill(8)) {
+			return -1;
 		}
+		return read_un(8);
 	}
 
 	@Override
 	public int read(byte[] bytes) throws IOException {
-		for (int i = 0; i != bytes.length; ++i) {
-			bytes[i] = (byte) read();
-		}
-		return bytes.length;
+		return read(bytes, 0, bytes.length);
 	}
 
 	@Override
 	public int read(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			bytes[offset] = (byte) read();
+		final int start = offset;
+		final int end = offset + length;
+		if ((count & 7) != 0) {
+			// Not byte aligned, so every byte must be shifted
+			while (offset < end && refill(8)) {
+				bytes[offset++] = (byte) read_un(8);
+			}
+		} else {
+			// Take whole bytes from window first
+			while (offset < end && count > 0) {
+				bytes[offset++] = (byte) value;
+				value = value >>> 8;
+				count = count - 8;
+			}
+			// Then whatever remains in the buffer
+			int n = Math.min(end - offset, limit - position);
+			System.arraycopy(buffer, position, bytes, offset, n);
+			position += n;
+			offset += n;
+			// Finally, read directly from underlying stream
+			while (offset < end) {
+				n = input.read(bytes, offset, end - offset);
+				if (n < 0) {
+					break;
+				}
+				offset += n;
+			}
 		}
-		return length;
+		return (offset == start && length > 0) ? -1 : offset - start;
 	}
 
 	public int read_u8() throws IOException {
-		if(count == 0) {
-			return input.read() & 0xFF;
-		} else {
-			return read_un(8);
-		}
+		return read_un(8);
 	}
 
 	public int read_u16() throws IOException {
@@ -62,49 +116,75 @@ public class BinaryInputStream extends InputStream {
 	}
 
 	public long read_u32() throws IOException {
-		// FIXME: this is most definitely broken
-		return (read_u8() << 24) | (read_u8() << 16) | (read_u8() << 8)
+		return ((long) read_u8() << 24) | (read_u8() << 16) | (read_u8() << 8)
 				| read_u8();
 	}
 
 	public int read_un(int n) throws IOException {
-		int value = 0;
-		int mask = 1;
-		for(int i=0;i!=n;++i) {
-			if(read_bit()) {
-				value |= mask;
-			}
-			mask = mask << 1;
+		if (count < n && !refill(n)) {
+			throw new EOFException();
 		}
-		return value;
+		int r = (int) (value & (0xFFFFFFFFL >>> (32 - n)));
+		value = value >>> n;
+		count = count - n;
+		return r;
 	}
 
 	public int read_uv() throws IOException {
 		int value = 0;
-		boolean flag = true;
 		int shift = 0;
-		while(flag) {
-			int w = read_un(4);
-			flag = (w&8) != 0;
-			value = ((w&7)<<shift) | value;
+		while (true) {
+			if (count < 4 && !refill(4)) {
+				throw new EOFException();
+			}
+			// Extract chunks directly from the window
+			int w = (int) this.value & 15;
+			this.value = this.value >>> 4;
+			count = count - 4;
+			value = ((w & 7) << shift) | value;
 			shift = shift + 3;
+			if ((w & 8) == 0) {
+				return value;
+			}
 		}
-		return value;
 	}
 
 	public boolean read_bit() throws IOException {
-		if(count == 0) {
-			value = input.read();
-			if(value < 0) { throw new EOFException(); }
-			count = 8;
-		}
-		boolean r = (value&1) != 0;
-		value = value >> 1;
-		count = count - 1;
-		return r;
+		return read_un(1) != 0;
 	}
 
 	public void pad_u8() throws IOException {
-		count = 0; // easy!!
+		// Discard remaining bits of the current byte
+		int n = count & 7;
+		value = value >>> n;
+		count = count - n;
+	}
+
+	/**
+	 * Move as many bytes as possible from the buffer into the window, refilling
+	 * the buffer from the underlying stream as necessary.
+	 *
+	 * @param n The number of bits required.
+	 * @return True if at least <code>n</code> bits are now available.
+	 * @throws IOException
+	 */
+	private boolean refill(int n) throws IOException {
+		while (count <= 56) {
+			if (position == limit) {
+				if (count >= n) {
+					// Don't block on the underlying stream unnecessarily
+					break;
+				}
+				int r = input.read(buffer, 0, buffer.length);
+				if (r <= 0) {
+					break;
+				}
+				position = 0;
+				limit = r;
+			}
+			value |= (long) (buffer[position++] & 0xFF) << count;
+			count = count + 8;
+		}
+		return count >= n;
 	}
 }
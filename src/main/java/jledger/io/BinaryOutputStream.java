@@ -15,11 +15,42 @@ package jledger.io;
 
 import java.io.*;
 
+/**
+ * An output stream which supports writing values using an arbitrary number of
+ * bits. Bits are packed into each byte starting from the least significant bit.
+ * Pending bits are accumulated in a 64-bit word, from which whole bytes are
+ * drained into an internal buffer. The buffer is written to the underlying
+ * stream in blocks, rather than one byte at a time.
+ *
+ * @author David J. Pearce
+ *
+ */
 public class BinaryOutputStream extends OutputStream {
+	/**
+	 * The size of the internal buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	protected OutputStream output;
-	protected int value;
+	/**
+	 * Bits written but not yet drained into the buffer. The first such bit is the
+	 * least significant.
+	 */
+	protected long value;
+	/**
+	 * The number of bits in <code>value</code>, which is always less than 8
+	 * between operations.
+	 */
 	protected int count;
 	protected int length;
+	/**
+	 * Bytes written but not yet passed to the underlying stream.
+	 */
+	private final byte[] buffer;
+	/**
+	 * The number of active bytes in <code>buffer</code>.
+	 */
+	private int position;
 
 	/**
 	 * Write out data in big-endian format.
@@ -27,6 +58,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public BinaryOutputStream(OutputStream output) {
 		this.output = output;
+		this.buffer = new byte[BUFFER_SIZE];
 	}
 
 	/**
@@ -45,25 +77,30 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	@Override
 	public void write(int i) throws IOException {
-		if(count == 0) {
-			output.write(i & 0xFF);
-			length++;
-		} else {
-			write_un(i & 0xFF,8);
-		}
+		write_u8(i);
 	}
 
 	@Override
 	public void write(byte[] bytes) throws IOException {
-		for(byte b : bytes) {
-			write(b);
-		}
+		write(bytes, 0, bytes.length);
 	}
 
 	@Override
 	public void write(byte[] bytes, int offset, int length) throws IOException {
-		for(;offset < length;++offset) {
-			write(bytes[offset]);
+		if (count != 0) {
+			// Not byte aligned, so every byte must be shifted
+			for (int end = offset + length; offset < end; ++offset) {
+				write_un(bytes[offset] & 0xFF, 8);
+			}
+		} else if (length > (buffer.length - position)) {
+			// Too large for the buffer, so bypass it
+			drain();
+			output.write(bytes, offset, length);
+			this.length += length;
+		} else {
+			System.arraycopy(bytes, offset, buffer, position, length);
+			position += length;
+			this.length += length;
 		}
 	}
 
@@ -75,8 +112,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public void write_u8(int w) throws IOException {
 		if(count == 0) {
-			output.write(w & 0xFF);
-			length++;
+			put(w);
 		} else {
 			write_un(w & 0xFF,8);
 		}
@@ -121,15 +157,19 @@ public class BinaryOutputStream extends OutputStream {
 		if(w < 0) {
 			throw new IllegalArgumentException("cannot write negative number in a variable amount of space");
 		}
+		// Pack all chunks together, such that the first is least significant
+		long bits = 0;
+		int n = 0;
 		do {
-			int t = w & 7;
+			long t = w & 7;
 			w = w >> 3;
 			if(w != 0) {
-				write_un(8|t,4);
-			} else {
-				write_un(t,4);
+				t |= 8;
 			}
+			bits |= t << n;
+			n = n + 4;
 		} while(w != 0);
+		write_bits(bits, n);
 	}
 
 	/**
@@ -139,26 +179,11 @@ public class BinaryOutputStream extends OutputStream {
 	 * @throws IOException
 	 */
 	public void write_un(int bits, int n) throws IOException {
-		int mask = 1;
-		for(int i=0;i<n;++i) {
-			boolean bit = (bits & mask) != 0;
-			write_bit(bit);
-			mask = mask << 1;
-		}
+		write_bits(bits & (0xFFFFFFFFL >>> (32 - n)), n);
 	}
 
 	public void write_bit(boolean bit) throws IOException {
-		value = value >> 1;
-		if(bit) {
-			value |= 128;
-		}
-		count = count + 1;
-		if(count == 8) {
-			count = 0;
-			output.write(value);
-			length++;
-			value = 0;
-		}
+		write_bits(bit ? 1 : 0, 1);
 	}
 
 	/**
@@ -167,8 +192,7 @@ public class BinaryOutputStream extends OutputStream {
 	 */
 	public void pad_u8() throws IOException {
 		if (count > 0) {
-			output.write(value >>> (8-count));
-			length++;
+			put((int) value);
 			value = 0;
 			count = 0;
 		}
@@ -187,11 +211,57 @@ public class BinaryOutputStream extends OutputStream {
 			// write. This means we have to pad out the remainder of a byte.
 			// Instead of padding with zeros, I pad with ones. The reason for
 			// this is that it forces an EOF when reading back in with read_uv().
-			value = value >>> (8-count);
-			int mask = 0xff & ((~0) << count);
-			value = value | mask;
-			output.write(value);
-			length++;
+			put((int) value | (0xFF << count));
+			value = 0;
+			count = 0;
+		}
+		drain();
+		output.flush();
+	}
+
+	/**
+	 * Write the n least significant bits of a given value, where n is at most 56.
+	 * Any higher bits must be zero.
+	 *
+	 * @param bits
+	 * @param n
+	 * @throws IOException
+	 */
+	private void write_bits(long bits, int n) throws IOException {
+		long v = value | (bits << count);
+		int c = count + n;
+		while (c >= 8) {
+			put((int) v);
+			v = v >>> 8;
+			c = c - 8;
+		}
+		value = v;
+		count = c;
+	}
+
+	/**
+	 * Append a single byte onto the buffer, draining it if full.
+	 *
+	 * @param b
+	 * @throws IOException
+	 */
+	private void put(int b) throws IOException {
+		if (position == buffer.length) {
+			drain();
+		}
+		buffer[position++] = (byte) b;
+		length++;
+	}
+
+	/**
+	 * Write everything in the buffer to the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		if (position > 0) {
+			output.write(buffer, 0, position);
+			position = 0;
 		}
 	}
 
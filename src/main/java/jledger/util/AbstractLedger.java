@@ -0,0 +1,1698 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jledger.core.Ledger;
+import jledger.core.Value;
+
+/**
+ * <p>
+ * Provides the packet encoding and indexing shared by all ledger
+ * implementations. A ledger is a sequence of packets (i.e. keys, data, diffs
+ * and transactions) which is only ever appended. Concrete implementations
+ * determine how the raw bytes of the packet stream are stored, whilst this
+ * class determines how they are encoded and maintains the indices needed for
+ * efficient lookup.
+ * </p>
+ * <p>
+ * Every packet consists of a one byte header, followed by the length of its
+ * payload and then the payload itself. All lengths and identifiers are encoded
+ * as unsigned variable-length integers (see <code>writeUV()</code>), so that
+ * small packets remain compact whilst ledgers can grow to any number of packets
+ * and values to any size. The payload of a <code>DIFF</code> packet is the
+ * parent identifier, the offset and the length of the replaced section,
+ * followed by the replacement bytes. The payload of a <code>TRANSACTION</code>
+ * packet is a sequence of key and value identifiers.
+ * </p>
+ * <p>
+ * A ledger supports a single writer and any number of concurrent readers,
+ * without locking. Since packets are only ever appended, a reader can safely
+ * operate on any prefix of the ledger. The writer appends each packet and then
+ * publishes it by incrementing <code>size</code>, which is volatile. Likewise,
+ * the indices are extended in place beyond what is published, or by copying
+ * them, such that readers never observe a partially updated entry.
+ * Implementations are expected to grow their storage in the same way. Readers
+ * only ever operate on packets which were published when they started.
+ * </p>
+ * <p>
+ * Identical values are stored only once. Every <code>DATA</code> packet is
+ * indexed by a 128-bit hash of its contents, and adding a value whose bytes
+ * match an existing packet simply returns that packet. Since this index is only
+ * used when adding values, it is accessed only by the writer.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public abstract class AbstractLedger implements Ledger<AbstractLedger.Key, AbstractLedger.Data> {
+	/**
+	 * The count of active packets in the current ledger. Writing this publishes
+	 * all packets written before it to concurrent readers.
+	 */
+	protected volatile int size;
+	/**
+	 * The indices loaded from a checkpoint (see <code>loadIndex()</code>), or
+	 * <code>null</code> if there is none. These are served directly from the
+	 * checkpoint and never modified, so the indices below only cover what was
+	 * added after it.
+	 */
+	private Checkpoint base;
+	/**
+	 * The number of keys covered by <code>base</code>. Every key has an index,
+	 * and those with an index below this are found through <code>base</code>.
+	 */
+	private int nbase;
+	/**
+	 * An open-addressing hash table mapping the bytes of each key added since the
+	 * checkpoint to its index. Empty slots are marked with <code>-1</code>, and
+	 * the table is always kept at most half full. Slots holding an index not
+	 * below <code>nkeys</code> are unpublished, and ignored by readers.
+	 */
+	private volatile int[] keyTable;
+	/**
+	 * The packet identifiers of all keys added since the checkpoint, in the order
+	 * they were added. The key with index <code>i</code> is held at
+	 * <code>i - nbase</code>.
+	 */
+	private volatile int[] keys;
+	/**
+	 * The hash of each key in <code>keys</code>. This avoids rehashing key bytes
+	 * when the key table is resized.
+	 */
+	private volatile int[] keyHashes;
+	/**
+	 * The count of active keys in the current ledger. Writing this publishes all
+	 * keys registered before it to concurrent readers.
+	 */
+	private volatile int nkeys;
+	/**
+	 * The assignments made since the checkpoint to each key in
+	 * <code>keys</code>.
+	 */
+	private volatile Versions[] versions;
+	/**
+	 * The assignments made since the checkpoint to keys covered by it, by key
+	 * index. Keys which have not been assigned since are absent.
+	 */
+	private final ConcurrentHashMap<Integer, Versions> revisions = new ConcurrentHashMap<>();
+	/**
+	 * The maximum number of <code>DIFF</code> packets which can be chained
+	 * together before a full <code>DATA</code> packet is written instead. This
+	 * bounds the cost of reading a value which has been edited many times.
+	 */
+	private int maxChainDepth = 16;
+	/**
+	 * Caches the materialised bytes of values which are stored as diffs.
+	 */
+	private final ValueCache cache = new ValueCache(DEFAULT_CACHE_BUDGET);
+	/**
+	 * An open-addressing hash table mapping the content hash of each
+	 * <code>DATA</code> packet added since the checkpoint to its index within
+	 * <code>contents</code>. Empty slots are marked with <code>-1</code>, and the
+	 * table is always kept at most half full.
+	 */
+	private int[] contentTable;
+	/**
+	 * The packet identifiers of all <code>DATA</code> packets added since the
+	 * checkpoint, in the order they were added.
+	 */
+	private int[] contents;
+	/**
+	 * The 128-bit content hash of each packet in <code>contents</code>, which
+	 * occupies two consecutive elements.
+	 */
+	private long[] contentHashes;
+	/**
+	 * The count of <code>DATA</code> packets in <code>contents</code>.
+	 */
+	private int ncontents;
+	/**
+	 * Used to compute content hashes.
+	 */
+	private final MessageDigest digest;
+
+	public AbstractLedger() {
+		this.size = 0;
+		this.keyTable = new int[16];
+		this.keys = new int[8];
+		this.keyHashes = new int[8];
+		this.nkeys = 0;
+		this.versions = new Versions[8];
+		this.contentTable = new int[16];
+		this.contents = new int[8];
+		this.contentHashes = new long[16];
+		this.ncontents = 0;
+		Arrays.fill(keyTable, -1);
+		Arrays.fill(contentTable, -1);
+		try {
+			this.digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Should be unreachable, since every platform must support MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Key lookup(String key) {
+		byte[] bs = key.getBytes();
+		int index = internalFind(bs, internalHash(bs));
+		return (index < 0) ? null : new Key(this, internalKeyId(index), index);
+	}
+
+	@Override
+	public Key add(String key) {
+		byte[] bs = key.getBytes();
+		int hash = internalHash(bs);
+		int index = internalFind(bs, hash);
+		if (index < 0) {
+			// Key doesn't exist, so create it.
+			index = internalInsert(append(KEY, bs), hash);
+		}
+		return new Key(this, internalKeyId(index), index);
+	}
+
+	/**
+	 * Add an arbitrary value into this ledger producing an interned value which can
+	 * then be used within a transaction. This will traverse the value adding
+	 * delta's as necessary and interning anything not already interned on this
+	 * ledger.
+	 *
+	 * @param value
+	 * @return
+	 */
+	@Override
+	public Data add(jledger.core.Value value) {
+		//
+		if (value instanceof Data && ((Data) value).ledger == this) {
+			// Easy, already interned on this ledger
+			return (Data) value;
+		} else if (value instanceof Data.Delta) {
+			Data.Delta d = (Data.Delta) value;
+			// Intern the parent
+			Data parent = add(d.parent());
+			//
+			if (internalDepth(parent.id) < maxChainDepth) {
+				return new Data(this, append(DIFF, parent.id, d.offset(), d.length(), d.bytes()));
+			} else {
+				// Chain is too long, so write a full snapshot instead.
+				byte[] bytes = splice(internalBytes(parent.id), d.offset(), d.length(), d.bytes());
+				return new Data(this, internalData(bytes, internalDigest(bytes)));
+			}
+		} else {
+			byte[] bytes = new byte[value.size()];
+			value.read(0, bytes, 0, bytes.length);
+			return new Data(this, internalData(bytes, internalDigest(bytes)));
+		}
+	}
+
+	/**
+	 * Add a value into this ledger which is intended as the next value of a given
+	 * key. Rather than writing a full snapshot, the value is compared against the
+	 * key's current value and stored as one or more diffs against it when that is
+	 * smaller. Thus, the growth of the ledger reflects the amount actually changed.
+	 * A full snapshot is written when the key has no current value, when the
+	 * diffs would not be smaller, or when the chain of diffs is already too long.
+	 * If the value is unchanged, the key's current value is simply returned.
+	 * Values which are already interned, or are deltas, are added as normal.
+	 * Likewise, a value identical to an existing snapshot is not stored again.
+	 *
+	 * @param key   The key whose next value this is.
+	 * @param value The value to add.
+	 * @return
+	 */
+	@Override
+	public Data add(Key key, jledger.core.Value value) {
+		if ((value instanceof Data && ((Data) value).ledger == this) || value instanceof Data.Delta) {
+			return add(value);
+		}
+		byte[] bytes = new byte[value.size()];
+		value.read(0, bytes, 0, bytes.length);
+		long[] hash = internalDigest(bytes);
+		int existing = internalFindData(bytes, hash);
+		if (existing >= 0) {
+			// Identical value already stored, hence reuse it
+			return new Data(this, existing);
+		}
+		Data current = get(key);
+		if (current != null) {
+			int depth = internalDepth(current.id);
+			if (depth < maxChainDepth) {
+				int[] hunks = internalDiff(internalBytes(current.id), bytes, maxChainDepth - depth);
+				if (hunks != null && hunks.length == 0) {
+					// Unchanged, hence reuse current value
+					return current;
+				} else if (hunks != null) {
+					// Apply hunks last to first, so earlier offsets are unaffected
+					int id = current.id;
+					for (int i = hunks.length - 4; i >= 0; i -= 4) {
+						byte[] data = Arrays.copyOfRange(bytes, hunks[i + 2], hunks[i + 2] + hunks[i + 3]);
+						id = append(DIFF, id, hunks[i], hunks[i + 1], data);
+					}
+					return new Data(this, id);
+				}
+			}
+		}
+		return new Data(this, internalData(bytes, hash));
+	}
+
+	/**
+	 * Append a transaction onto this ledger.
+	 *
+	 * @param txn
+	 * @return
+	 */
+	@Override
+	public void add(Pair<Key, Data>... txn) {
+		int index = 0;
+		byte[] bytes = new byte[txn.length * 2 * MAX_UV_SIZE];
+		for (int i = 0; i != txn.length; ++i) {
+			Pair<Key, Data> a = txn[i];
+			Key k = a.first();
+			Data v = a.second();
+			index = writeUV(k.id, bytes, index);
+			index = writeUV(v.id, bytes, index);
+		}
+		int id = append(TRANSACTION, Arrays.copyOf(bytes, index));
+		// Record new version of each key
+		for (int i = 0; i != txn.length; ++i) {
+			Pair<Key, Data> a = txn[i];
+			internalAssign(a.first().index, id, a.second().id);
+		}
+	}
+
+	/**
+	 * Get the maximum number of diffs which can be chained together before a full
+	 * snapshot of a value is written instead.
+	 *
+	 * @return
+	 */
+	public int getMaxChainDepth() {
+		return maxChainDepth;
+	}
+
+	/**
+	 * Set the maximum number of diffs which can be chained together before a full
+	 * snapshot of a value is written instead. Smaller values make reading heavily
+	 * edited values cheaper, at the expense of a larger ledger. A value of zero
+	 * means diffs are never written.
+	 *
+	 * @param depth
+	 */
+	public void setMaxChainDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("invalid chain depth");
+		}
+		this.maxChainDepth = depth;
+	}
+
+	/**
+	 * Get the cache of materialised values used by this ledger. This can be used
+	 * to adjust its budget, and to inspect its hit and miss counters.
+	 *
+	 * @return
+	 */
+	public ValueCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public Data get(Key key) {
+		return get(size - 1, key);
+	}
+
+	@Override
+	public Data get(int timestamp, Key key) {
+		// Ignore any transactions not yet published
+		timestamp = Math.min(timestamp, size - 1);
+		final Versions v = internalVersions(key.index);
+		if (v != null) {
+			// Read count before array, so all counted elements are visible
+			final int n = v.count;
+			final int[] vs = v.items;
+			// Binary search for last transaction at or before timestamp
+			int low = 0;
+			int high = (n >> 1) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (vs[mid << 1] <= timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			if (high >= 0) {
+				return new Data(this, vs[(high << 1) + 1]);
+			}
+		}
+		if (key.index < nbase) {
+			// Everything in the checkpoint precedes the above
+			final IntBuffer vs = base.versions;
+			final int start = base.starts.get(key.index);
+			int low = 0;
+			int high = ((base.starts.get(key.index + 1) - start) >> 1) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (vs.get(start + (mid << 1)) <= timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			if (high >= 0) {
+				return new Data(this, vs.get(start + (high << 1) + 1));
+			}
+		}
+		// No value found if nothing at or before timestamp
+		return null;
+	}
+
+	// =================================================================
+	// Storage
+	// =================================================================
+
+	/**
+	 * Determine the position within the underlying storage of the first byte of
+	 * a given packet.
+	 *
+	 * @param id The packet identifier, which must be active.
+	 * @return
+	 */
+	protected abstract long position(int id);
+
+	/**
+	 * Read the byte at a given position within the underlying storage.
+	 *
+	 * @param position
+	 * @return
+	 */
+	protected abstract byte readByte(long position);
+
+	/**
+	 * Read a sequence of bytes starting from a given position within the
+	 * underlying storage into a given array.
+	 *
+	 * @param position Position of first byte to read.
+	 * @param bytes    Array to read bytes into.
+	 * @param offset   Index within array of first byte to write.
+	 * @param length   Number of bytes to read.
+	 */
+	protected abstract void readBytes(long position, byte[] bytes, int offset, int length);
+
+	/**
+	 * Write a complete packet onto the end of the underlying storage, and record
+	 * its position as that of the packet identified by <code>size</code>. This
+	 * must not disturb any bytes or positions of published packets, since these
+	 * may be read concurrently.
+	 *
+	 * @param header  The encoded packet header.
+	 * @param n       The number of active bytes in the packet header.
+	 * @param payload The packet payload.
+	 */
+	protected abstract void write(byte[] header, int n, byte[] payload);
+
+	/**
+	 * Restore the indices for a packet which already exists in the underlying
+	 * storage. This is used when reopening a ledger, and packets must be restored
+	 * in order.
+	 *
+	 * @param id The packet identifier, which must be active.
+	 */
+	protected final void restore(int id) {
+		long position = position(id);
+		byte header = readByte(position);
+		int length = readUV(position + 1);
+		long payload = position + 1 + sizeUV(length);
+		if (header == KEY) {
+			byte[] bs = new byte[length];
+			readBytes(payload, bs, 0, length);
+			internalInsert(id, internalHash(bs));
+		} else if (header == DATA) {
+			byte[] bs = new byte[length];
+			readBytes(payload, bs, 0, length);
+			internalInsertData(id, internalDigest(bs));
+		} else if (header == TRANSACTION) {
+			long end = payload + length;
+			while (payload < end) {
+				int k = readUV(payload);
+				payload += sizeUV(k);
+				int v = readUV(payload);
+				payload += sizeUV(v);
+				internalAssign(internalIndexOf(k), id, v);
+			}
+		}
+	}
+
+	/**
+	 * Determine the number of integers required to save the indices of this
+	 * ledger (see <code>saveIndex()</code>).
+	 *
+	 * @return
+	 */
+	protected final long sizeOfIndex() {
+		final int n = nkeys;
+		final int m = internalCountData();
+		long count = 2 + internalTableSize(n) + (3L * n) + 1;
+		for (int i = 0; i < n; ++i) {
+			count += internalCountVersions(i);
+		}
+		// Content hashes take four integers each
+		return count + 2 + internalTableSize(m) + (5L * m);
+	}
+
+	/**
+	 * Save the indices of this ledger (i.e. the key index, the versions of each
+	 * key and the content index) as a flat sequence of integers. These can
+	 * subsequently be loaded with <code>loadIndex()</code>, rather than restoring
+	 * every packet. This must only be called by the writer.
+	 *
+	 * @param buffer The buffer to write into, which must have at least
+	 *               <code>sizeOfIndex()</code> integers remaining.
+	 */
+	protected final void saveIndex(IntBuffer buffer) {
+		final int n = nkeys;
+		final int nb = nbase;
+		final Checkpoint base = this.base;
+		// Key table, covering everything
+		int[] table = new int[internalTableSize(n)];
+		Arrays.fill(table, -1);
+		for (int i = 0; i < n; ++i) {
+			internalPlace(table, (i < nb) ? base.keyHashes.get(i) : keyHashes[i - nb], i);
+		}
+		buffer.put(n);
+		buffer.put(table.length);
+		buffer.put(table);
+		// Keys
+		if (base != null) {
+			buffer.put(base.keys.duplicate());
+		}
+		buffer.put(keys, 0, n - nb);
+		if (base != null) {
+			buffer.put(base.keyHashes.duplicate());
+		}
+		buffer.put(keyHashes, 0, n - nb);
+		// Versions, starting with where each key's versions start
+		int start = 0;
+		for (int i = 0; i < n; ++i) {
+			buffer.put(start);
+			start += internalCountVersions(i);
+		}
+		buffer.put(start);
+		for (int i = 0; i < n; ++i) {
+			if (i < nb) {
+				buffer.put(section(base.versions, base.starts.get(i), base.starts.get(i + 1)));
+			}
+			Versions v = internalVersions(i);
+			if (v != null) {
+				buffer.put(v.items, 0, v.count);
+			}
+		}
+		// Content index, covering everything
+		final int mb = (base == null) ? 0 : base.ncontents;
+		final int m = mb + ncontents;
+		table = new int[internalTableSize(m)];
+		Arrays.fill(table, -1);
+		for (int i = 0; i < m; ++i) {
+			internalPlace(table, (i < mb) ? base.contentHashes.get((i * 4) + 3) : (int) contentHashes[((i - mb) * 2) + 1], i);
+		}
+		buffer.put(m);
+		buffer.put(table.length);
+		buffer.put(table);
+		if (base != null) {
+			buffer.put(base.contents.duplicate());
+		}
+		buffer.put(contents, 0, ncontents);
+		if (base != null) {
+			buffer.put(base.contentHashes.duplicate());
+		}
+		for (int i = 0; i < (2 * ncontents); ++i) {
+			long h = contentHashes[i];
+			buffer.put((int) (h >>> 32));
+			buffer.put((int) h);
+		}
+	}
+
+	/**
+	 * Load indices previously saved with <code>saveIndex()</code>, replacing any
+	 * existing indices. This is used when reopening a ledger, and must happen
+	 * before any packets are restored or appended. The indices are not copied,
+	 * but are instead served directly from the buffer (which must not be
+	 * subsequently modified). Thus, the cost of loading them does not depend on
+	 * their size. Indices for anything added afterwards are held separately.
+	 *
+	 * @param buffer The buffer to read from, which must contain exactly the
+	 *               saved indices.
+	 * @return <code>false</code> if the buffer is malformed, in which case nothing
+	 *         is loaded.
+	 */
+	protected final boolean loadIndex(IntBuffer buffer) {
+		Checkpoint checkpoint = Checkpoint.parse(buffer.slice());
+		if (checkpoint == null) {
+			return false;
+		}
+		this.base = checkpoint;
+		this.nbase = checkpoint.nkeys;
+		this.keyTable = new int[16];
+		this.keys = new int[8];
+		this.keyHashes = new int[8];
+		this.versions = new Versions[8];
+		this.revisions.clear();
+		this.contentTable = new int[16];
+		this.contents = new int[8];
+		this.contentHashes = new long[16];
+		this.ncontents = 0;
+		Arrays.fill(keyTable, -1);
+		Arrays.fill(contentTable, -1);
+		this.nkeys = checkpoint.nkeys;
+		return true;
+	}
+
+	/**
+	 * Determine the position immediately following a packet which starts at a
+	 * given position.
+	 *
+	 * @param position Position of the first byte of the packet.
+	 * @return
+	 */
+	protected final long next(long position) {
+		int length = readUV(position + 1);
+		return position + 1 + sizeUV(length) + length;
+	}
+
+	/**
+	 * Read an unsigned variable-length integer starting at a given position within
+	 * the underlying storage.
+	 *
+	 * @param position
+	 * @return
+	 */
+	protected final int readUV(long position) {
+		int b = readByte(position);
+		if (b >= 0) {
+			// Fast path for single byte values
+			return b;
+		}
+		int value = b & 0x7F;
+		for (int shift = 7;; shift += 7) {
+			b = readByte(++position);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Append a given item onto the ledger.
+	 *
+	 * @param header
+	 * @param payload
+	 * @return
+	 */
+	private int append(byte header, byte[] payload) {
+		byte[] bytes = new byte[1 + MAX_UV_SIZE];
+		bytes[0] = header;
+		write(bytes, writeUV(payload.length, bytes, 1), payload);
+		// Finally, publish the packet
+		int id = size;
+		size = id + 1;
+		return id;
+	}
+
+	private int append(byte header, int parent, int offset, int length, byte[] payload) {
+		int n = sizeUV(parent) + sizeUV(offset) + sizeUV(length);
+		byte[] bytes = new byte[n + payload.length];
+		writeUV(length, bytes, writeUV(offset, bytes, writeUV(parent, bytes, 0)));
+		// Copy payload
+		System.arraycopy(payload, 0, bytes, n, payload.length);
+		return append(header, bytes);
+	}
+
+	/**
+	 * Represents a key within the ledger which can be associated with a value.
+	 * Every key is associated with a specific ledger and can only be used with that
+	 * ledger.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Key {
+		/**
+		 * The enclosing ledger.
+		 */
+		private final AbstractLedger ledger;
+		/**
+		 * The object identifier within the given ledger.
+		 */
+		private final int id;
+		/**
+		 * The index of this key within the ledger's key index.
+		 */
+		private final int index;
+
+		private Key(AbstractLedger ledger, int id, int index) {
+			this.ledger = ledger;
+			this.id = id;
+			this.index = index;
+		}
+
+		public int id() {
+			return id;
+		}
+	}
+
+	/**
+	 * An interned value on this ledger, which corresponds to either a raw byte
+	 * sequence or a diff against some parent value.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Data implements Value.Interned<Key, Data> {
+		/**
+		 * The enclosing ledger.
+		 */
+		private final AbstractLedger ledger;
+		/**
+		 * The object identifier within the given ledger.
+		 */
+		private final int id;
+
+		private Data(AbstractLedger ledger, int id) {
+			this.ledger = ledger;
+			this.id = id;
+		}
+
+		public int id() {
+			return id;
+		}
+
+		@Override
+		public int size() {
+			return ledger.internalSize(id);
+		}
+
+		@Override
+		public byte read(int index) {
+			return ledger.internalRead(id, index);
+		}
+
+		@Override
+		public void read(int index, byte[] bytes, int offset, int length) {
+			ledger.internalRead(id, index, bytes, offset, length);
+		}
+
+		@Override
+		public void read(int index, ByteBuffer buffer) {
+			ByteArrayValue.read(this, index, buffer);
+		}
+
+		@Override
+		public Delta write(int index, byte b) {
+			return new ByteArrayValue.Delta(this,index,1,b);
+		}
+
+		@Override
+		public Delta replace(int index, int length, byte[] bytes) {
+			return new ByteArrayValue.Delta(this, index, length, bytes);
+		}
+
+		@Override
+		public jledger.core.Ledger<Key, Data> getLedger() {
+			return ledger;
+		}
+
+		public String toString() {
+			return ledger.internalToString(id);
+		}
+	}
+
+	/**
+	 * The assignments made to a single key. Each assignment occupies two
+	 * consecutive elements: the packet identifier of the transaction, followed by
+	 * that of the value assigned. Since transactions are only ever appended, the
+	 * sequence is sorted by transaction. The count is written after the elements
+	 * it covers, so readers which read it first will see them.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Versions {
+		private volatile int[] items = EMPTY_VERSIONS;
+		private volatile int count;
+
+		public void add(int txn, int value) {
+			int[] vs = items;
+			int n = count;
+			if (n == vs.length) {
+				vs = Arrays.copyOf(vs, Math.max(4, n * 2));
+			}
+			vs[n] = txn;
+			vs[n + 1] = value;
+			items = vs;
+			count = n + 2;
+		}
+	}
+
+	/**
+	 * The indices saved by a checkpoint, as views of the buffer holding them.
+	 * These have the same layout as the corresponding indices of the ledger,
+	 * except that the versions of all keys are held in a single sequence, with
+	 * <code>starts</code> identifying where those of each key begin (and end).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Checkpoint {
+		private final int nkeys;
+		private final IntBuffer keyTable;
+		private final IntBuffer keys;
+		private final IntBuffer keyHashes;
+		private final IntBuffer starts;
+		private final IntBuffer versions;
+		private final int ncontents;
+		private final IntBuffer contentTable;
+		private final IntBuffer contents;
+		private final IntBuffer contentHashes;
+
+		private Checkpoint(IntBuffer buffer, int nkeys, int tableSize, int nversions, int ncontents,
+				int contentTableSize) {
+			int offset = 2;
+			this.nkeys = nkeys;
+			this.keyTable = section(buffer, offset, offset += tableSize);
+			this.keys = section(buffer, offset, offset += nkeys);
+			this.keyHashes = section(buffer, offset, offset += nkeys);
+			this.starts = section(buffer, offset, offset += nkeys + 1);
+			this.versions = section(buffer, offset, offset += nversions);
+			offset += 2;
+			this.ncontents = ncontents;
+			this.contentTable = section(buffer, offset, offset += contentTableSize);
+			this.contents = section(buffer, offset, offset += ncontents);
+			this.contentHashes = section(buffer, offset, offset += 4 * ncontents);
+		}
+
+		/**
+		 * Construct a checkpoint from the indices saved in a given buffer, checking
+		 * that the size of each section is consistent with the buffer.
+		 *
+		 * @param buffer
+		 * @return The checkpoint, or <code>null</code> if the buffer is malformed.
+		 */
+		public static Checkpoint parse(IntBuffer buffer) {
+			final long length = buffer.remaining();
+			if (length < 2) {
+				return null;
+			}
+			final int n = buffer.get(0);
+			final int t = buffer.get(1);
+			long offset = 2L + t + (3L * n) + 1;
+			if (n < 0 || !isTableSize(t, n) || offset > length) {
+				return null;
+			}
+			final int nv = buffer.get((int) offset - 1);
+			offset += nv;
+			if (nv < 0 || (nv & 1) != 0 || (offset + 2) > length) {
+				return null;
+			}
+			final int m = buffer.get((int) offset);
+			final int tc = buffer.get((int) offset + 1);
+			offset += 2L + tc + (5L * m);
+			if (m < 0 || !isTableSize(tc, m) || offset != length) {
+				return null;
+			}
+			return new Checkpoint(buffer, n, t, nv, m, tc);
+		}
+
+		private static boolean isTableSize(int size, int n) {
+			return size > 0 && (size & (size - 1)) == 0 && (n * 2L) <= size;
+		}
+	}
+
+	/**
+	 * Get a view of a given region of a buffer.
+	 *
+	 * @param buffer
+	 * @param start  Index of first element in region.
+	 * @param end    Index following last element in region.
+	 * @return
+	 */
+	private static IntBuffer section(IntBuffer buffer, int start, int end) {
+		IntBuffer region = buffer.duplicate();
+		region.limit(end);
+		region.position(start);
+		return region.slice();
+	}
+
+	// =================================================================
+	// Byte Utils
+	// =================================================================
+
+	static final byte KEY = 0b000;
+	static final byte DATA = 0b001;
+	static final byte DIFF = 0b010;
+	static final byte TRANSACTION = 0b011;
+
+	private static final int[] EMPTY_VERSIONS = new int[0];
+
+	/**
+	 * The default number of bytes of materialised values which are cached.
+	 */
+	private static final long DEFAULT_CACHE_BUDGET = 16 * 1024 * 1024;
+
+	/**
+	 * The maximum number of insertions and deletions considered when splitting a
+	 * change into several hunks. This bounds the time spent diffing values which
+	 * have changed substantially.
+	 */
+	private static final int MAX_DIFF_COST = 1024;
+
+	/**
+	 * The largest number of unchanged bytes separating two hunks which are merged
+	 * into one. This roughly corresponds to the overhead of a diff packet.
+	 */
+	private static final int MAX_HUNK_GAP = 8;
+
+	/**
+	 * The maximum number of bytes required to encode an unsigned variable-length
+	 * integer.
+	 */
+	private static final int MAX_UV_SIZE = 5;
+
+	/**
+	 * Write an unsigned integer value using a variable amount of space. The value
+	 * is split into 7 bit (little-endian) chunks, each of which is stored in a
+	 * byte whose msb is a flag indicating whether there are more chunks.
+	 * Therefore, values between 0 and 127 fit into one byte, values between 128
+	 * and 16383 fit into two bytes, etc.
+	 *
+	 * @param value  The value to write, which cannot be negative.
+	 * @param bytes  The array to write into.
+	 * @param offset The index of the first byte to write.
+	 * @return The index following the last byte written.
+	 */
+	private static int writeUV(int value, byte[] bytes, int offset) {
+		if (value < 0) {
+			throw new IllegalArgumentException("cannot write negative number in a variable amount of space");
+		}
+		while (value >= 0x80) {
+			bytes[offset++] = (byte) (value | 0x80);
+			value = value >>> 7;
+		}
+		bytes[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Determine the number of bytes needed to encode a given unsigned integer
+	 * using a variable amount of space.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static int sizeUV(int value) {
+		int n = 1;
+		while (value >= 0x80) {
+			value = value >>> 7;
+			n = n + 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Find the index (within <code>keys</code>) of the key matching a given byte
+	 * sequence, or <code>-1</code> if no such key exists.
+	 *
+	 * @param key  The bytes of the key being searched for.
+	 * @param hash The hash of the key being searched for.
+	 * @return
+	 */
+	private int internalFind(byte[] key, int hash) {
+		final Checkpoint base = this.base;
+		if (base != null) {
+			final IntBuffer table = base.keyTable;
+			final int mask = table.limit() - 1;
+			for (int i = hash & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				int index = table.get(i);
+				if (index < 0) {
+					break;
+				} else if (base.keyHashes.get(index) == hash && internalEquals(key, base.keys.get(index))) {
+					return index;
+				}
+			}
+		}
+		// Read count first, so all keys below it are visible
+		final int n = nkeys;
+		final int nb = nbase;
+		final int[] table = keyTable;
+		final int mask = table.length - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int index = table[i];
+			if (index < 0) {
+				return -1;
+			} else if (index < n && keyHashes[index - nb] == hash && internalEquals(key, keys[index - nb])) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Find the index of the key with a given packet identifier. Since keys are
+	 * appended in order, this is a binary search.
+	 *
+	 * @param id The packet identifier of the key.
+	 * @return
+	 */
+	private int internalIndexOf(int id) {
+		final int nb = nbase;
+		int index;
+		if (nb > 0 && id <= base.keys.get(nb - 1)) {
+			final IntBuffer ks = base.keys;
+			int low = 0;
+			int high = nb - 1;
+			index = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int k = ks.get(mid);
+				if (k < id) {
+					low = mid + 1;
+				} else if (k > id) {
+					high = mid - 1;
+				} else {
+					index = mid;
+					break;
+				}
+			}
+		} else {
+			index = Arrays.binarySearch(keys, 0, nkeys - nb, id);
+			index = (index < 0) ? -1 : index + nb;
+		}
+		if (index < 0) {
+			throw new IllegalArgumentException("invalid key identifier (" + id + ")");
+		}
+		return index;
+	}
+
+	/**
+	 * Get the packet identifier of the key with a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private int internalKeyId(int index) {
+		final int nb = nbase;
+		return (index < nb) ? base.keys.get(index) : keys[index - nb];
+	}
+
+	/**
+	 * Get the assignments made to a given key since the checkpoint, or
+	 * <code>null</code> if there are none.
+	 *
+	 * @param index The index of the key.
+	 * @return
+	 */
+	private Versions internalVersions(int index) {
+		final int nb = nbase;
+		return (index < nb) ? revisions.get(index) : versions[index - nb];
+	}
+
+	/**
+	 * Determine the number of elements making up the versions of a given key,
+	 * including those in the checkpoint.
+	 *
+	 * @param index The index of the key.
+	 * @return
+	 */
+	private int internalCountVersions(int index) {
+		Versions v = internalVersions(index);
+		int count = (v == null) ? 0 : v.count;
+		if (index < nbase) {
+			count += base.starts.get(index + 1) - base.starts.get(index);
+		}
+		return count;
+	}
+
+	/**
+	 * Register a newly appended key packet in the key index, resizing the hash
+	 * table as necessary.
+	 *
+	 * @param id   The packet identifier of the key.
+	 * @param hash The hash of the key's bytes.
+	 * @return The index of the key.
+	 */
+	private int internalInsert(int id, int hash) {
+		final int index = nkeys;
+		final int nb = nbase;
+		final int t = index - nb;
+		if (t == keys.length) {
+			keys = Arrays.copyOf(keys, t * 2);
+			keyHashes = Arrays.copyOf(keyHashes, t * 2);
+			versions = Arrays.copyOf(versions, t * 2);
+		}
+		keys[t] = id;
+		keyHashes[t] = hash;
+		versions[t] = new Versions();
+		if (((t + 1) * 2) > keyTable.length) {
+			// Rehash everything into a table twice the size
+			int[] table = new int[keyTable.length * 2];
+			Arrays.fill(table, -1);
+			for (int i = 0; i <= t; ++i) {
+				internalPlace(table, keyHashes[i], nb + i);
+			}
+			keyTable = table;
+		} else {
+			internalPlace(keyTable, hash, index);
+		}
+		// Finally, publish the key
+		nkeys = index + 1;
+		return index;
+	}
+
+	/**
+	 * Record that a given key was assigned a given value by a given transaction.
+	 *
+	 * @param index The index of the key.
+	 * @param txn   The packet identifier of the transaction.
+	 * @param value The packet identifier of the value assigned.
+	 */
+	private void internalAssign(int index, int txn, int value) {
+		Versions v = internalVersions(index);
+		if (v == null) {
+			// First assignment to this key since the checkpoint
+			v = new Versions();
+			revisions.put(index, v);
+		}
+		v.add(txn, value);
+	}
+
+	/**
+	 * Find the <code>DATA</code> packet whose contents match a given byte
+	 * sequence, or <code>-1</code> if no such packet exists. Matching hashes are
+	 * confirmed by comparing bytes, so a collision can never return the wrong
+	 * packet.
+	 *
+	 * @param bytes The contents being searched for.
+	 * @param hash  The content hash of the bytes being searched for.
+	 * @return The packet identifier of the match.
+	 */
+	private int internalFindData(byte[] bytes, long[] hash) {
+		final Checkpoint base = this.base;
+		if (base != null) {
+			final IntBuffer table = base.contentTable;
+			final IntBuffer hashes = base.contentHashes;
+			final int mask = table.limit() - 1;
+			for (int i = (int) hash[1] & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				int index = table.get(i);
+				if (index < 0) {
+					break;
+				} else if (hashes.get((index * 4) + 3) == (int) hash[1]
+						&& internalLong(hashes, index * 4) == hash[0]
+						&& internalLong(hashes, (index * 4) + 2) == hash[1]
+						&& internalEquals(bytes, base.contents.get(index))) {
+					return base.contents.get(index);
+				}
+			}
+		}
+		final int[] table = contentTable;
+		final int mask = table.length - 1;
+		for (int i = (int) hash[1] & mask;; i = (i + 1) & mask) {
+			int index = table[i];
+			if (index < 0) {
+				return -1;
+			} else if (contentHashes[index * 2] == hash[0] && contentHashes[(index * 2) + 1] == hash[1]
+					&& internalEquals(bytes, contents[index])) {
+				return contents[index];
+			}
+		}
+	}
+
+	/**
+	 * Get the identifier of a <code>DATA</code> packet holding a given byte
+	 * sequence, appending one only if no such packet already exists.
+	 *
+	 * @param bytes The contents of the packet.
+	 * @param hash  The content hash of the bytes.
+	 * @return
+	 */
+	private int internalData(byte[] bytes, long[] hash) {
+		int id = internalFindData(bytes, hash);
+		if (id < 0) {
+			id = append(DATA, bytes);
+			internalInsertData(id, hash);
+		}
+		return id;
+	}
+
+	/**
+	 * Register a <code>DATA</code> packet in the content index, resizing the hash
+	 * table as necessary.
+	 *
+	 * @param id   The packet identifier.
+	 * @param hash The content hash of the packet's payload.
+	 */
+	private void internalInsertData(int id, long[] hash) {
+		final int index = ncontents;
+		if (index == contents.length) {
+			contents = Arrays.copyOf(contents, index * 2);
+			contentHashes = Arrays.copyOf(contentHashes, index * 4);
+		}
+		contents[index] = id;
+		contentHashes[index * 2] = hash[0];
+		contentHashes[(index * 2) + 1] = hash[1];
+		if (((index + 1) * 2) > contentTable.length) {
+			// Rehash everything into a table twice the size
+			int[] table = new int[contentTable.length * 2];
+			Arrays.fill(table, -1);
+			for (int i = 0; i <= index; ++i) {
+				internalPlace(table, (int) contentHashes[(i * 2) + 1], i);
+			}
+			contentTable = table;
+		} else {
+			internalPlace(contentTable, (int) hash[1], index);
+		}
+		ncontents = index + 1;
+	}
+
+	/**
+	 * Compute the 128-bit content hash of a given byte sequence.
+	 *
+	 * @param bytes
+	 * @return The high and low halves of the hash.
+	 */
+	private long[] internalDigest(byte[] bytes) {
+		ByteBuffer hash = ByteBuffer.wrap(digest.digest(bytes));
+		return new long[] { hash.getLong(0), hash.getLong(8) };
+	}
+
+	private static long internalLong(IntBuffer buffer, int index) {
+		return ((long) buffer.get(index) << 32) | (buffer.get(index + 1) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Determine the size of a hash table which can hold a given number of
+	 * entries, whilst being at most half full.
+	 *
+	 * @param n
+	 * @return
+	 */
+	private static int internalTableSize(int n) {
+		int size = 16;
+		while (size < (n * 2L)) {
+			size = size * 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Determine the number of <code>DATA</code> packets in the content index,
+	 * including those in the checkpoint.
+	 *
+	 * @return
+	 */
+	private int internalCountData() {
+		return (base == null) ? ncontents : base.ncontents + ncontents;
+	}
+
+	private static void internalPlace(int[] table, int hash, int index) {
+		final int mask = table.length - 1;
+		int i = hash & mask;
+		while (table[i] >= 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = index;
+	}
+
+	private static int internalHash(byte[] bytes) {
+		int hash = Arrays.hashCode(bytes);
+		// Spread higher bits downwards, since the table is indexed by low bits.
+		return hash ^ (hash >>> 16);
+	}
+
+	private String internalToString(int id) {
+		byte[] bytes = internalBytes(id);
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i < bytes.length; ++i) {
+			if (i != 0) {
+				r.append(';');
+			}
+			r.append(String.format("%02X", bytes[i]));
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Get the full sequence of bytes making up a given value. Values which must be
+	 * reconstructed from a chain of diffs are served from the cache where
+	 * possible, and are added to it otherwise.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private byte[] internalBytes(int id) {
+		long offset = position(id);
+		if (readByte(offset) == DATA) {
+			int size = readUV(offset + 1);
+			byte[] bytes = new byte[size];
+			readBytes(offset + 1 + sizeUV(size), bytes, 0, size);
+			return bytes;
+		}
+		byte[] bytes = cache.get(id);
+		if (bytes == null) {
+			bytes = internalMaterialize(id);
+			cache.put(id, bytes);
+		}
+		return bytes;
+	}
+
+	private int internalSize(int id) {
+		if (readByte(position(id)) == DIFF) {
+			byte[] bytes = cache.peek(id);
+			if (bytes != null) {
+				return bytes.length;
+			}
+		}
+		int delta = 0;
+		while (true) {
+			// Calculate offset of this packet
+			long offset = position(id);
+			// Extract key fields
+			byte header = readByte(offset);
+			int size = readUV(offset + 1);
+			offset = offset + 1 + sizeUV(size);
+			//
+			if (header == DATA) {
+				return size + delta;
+			} else {
+				int p = readUV(offset);
+				int o = readUV(offset + sizeUV(p));
+				int l = readUV(offset + sizeUV(p) + sizeUV(o));
+				size = size - (sizeUV(p) + sizeUV(o) + sizeUV(l));
+				delta = delta + (size - l);
+				id = p;
+			}
+		}
+	}
+
+	private byte internalRead(int id, int index) {
+		if (readByte(position(id)) == DIFF) {
+			byte[] bytes = cache.get(id);
+			if (bytes == null && internalSize(id) <= cache.getBudget()) {
+				// Worth materialising the whole value
+				bytes = internalMaterialize(id);
+				cache.put(id, bytes);
+			}
+			if (bytes != null) {
+				return bytes[index];
+			}
+		}
+		// Otherwise, walk the chain of diffs
+		while (true) {
+			long offset = position(id);
+			byte header = readByte(offset);
+			int size = readUV(offset + 1);
+			offset = offset + 1 + sizeUV(size);
+			if (header == DATA) {
+				return readByte(offset + index);
+			}
+			// Determine where index falls in the diff
+			int p = readUV(offset);
+			offset += sizeUV(p);
+			int o = readUV(offset);
+			offset += sizeUV(o);
+			int l = readUV(offset);
+			offset += sizeUV(l);
+			int n = size - (sizeUV(p) + sizeUV(o) + sizeUV(l));
+			if (index >= o && index < (o + n)) {
+				return readByte(offset + (index - o));
+			} else if (index >= (o + n)) {
+				index = (index - n) + l;
+			}
+			id = p;
+		}
+	}
+
+	/**
+	 * Read a section of a given value into a byte array. As for single bytes, a
+	 * diff which fits in the cache is materialised on a miss. Otherwise, each
+	 * section of the value is resolved to a region of the underlying storage (or
+	 * the cache), and copied in bulk.
+	 *
+	 * @param id     The packet identifier of the value.
+	 * @param index  The start of the section being read.
+	 * @param bytes  The array being read into.
+	 * @param offset The start of the section of the array being written.
+	 * @param length The number of bytes to read.
+	 */
+	private void internalRead(int id, int index, byte[] bytes, int offset, int length) {
+		if (readByte(position(id)) == DIFF) {
+			byte[] cached = cache.get(id);
+			if (cached == null && internalSize(id) <= cache.getBudget()) {
+				// Worth materialising the whole value
+				cached = internalMaterialize(id);
+				cache.put(id, cached);
+			}
+			if (cached != null) {
+				System.arraycopy(cached, index, bytes, offset, length);
+				return;
+			}
+		}
+		// Otherwise, resolve the section against the chain of diffs
+		internalCopy(id, index, bytes, offset, length);
+	}
+
+	/**
+	 * Copy a section of a given value into a byte array by resolving it against
+	 * the chain of diffs. Only values which are already cached are used, so that
+	 * walking the chain neither counts lookups nor populates the cache.
+	 *
+	 * @param id     The packet identifier of the value.
+	 * @param index  The start of the section being read.
+	 * @param bytes  The array being read into.
+	 * @param offset The start of the section of the array being written.
+	 * @param length The number of bytes to read.
+	 */
+	private void internalCopy(int id, int index, byte[] bytes, int offset, int length) {
+		long position = position(id);
+		byte header = readByte(position);
+		int size = readUV(position + 1);
+		position = position + 1 + sizeUV(size);
+		if (header == DATA) {
+			readBytes(position + index, bytes, offset, length);
+			return;
+		}
+		byte[] cached = cache.peek(id);
+		if (cached != null) {
+			System.arraycopy(cached, index, bytes, offset, length);
+			return;
+		}
+		// Determine how the section overlaps the diff
+		final int end = index + length;
+		int p = readUV(position);
+		position += sizeUV(p);
+		int o = readUV(position);
+		position += sizeUV(o);
+		int l = readUV(position);
+		position += sizeUV(l);
+		int n = size - (sizeUV(p) + sizeUV(o) + sizeUV(l));
+		// Read any section before the replacement
+		if (index < o) {
+			int m = Math.min(end, o) - index;
+			internalCopy(p, index, bytes, offset, m);
+			index += m;
+			offset += m;
+		}
+		// Read any section within the replacement
+		if (index < end && index < (o + n)) {
+			int m = Math.min(end, o + n) - index;
+			readBytes(position + (index - o), bytes, offset, m);
+			index += m;
+			offset += m;
+		}
+		// Read any section after the replacement
+		if (index < end) {
+			internalCopy(p, (index - n) + l, bytes, offset, end - index);
+		}
+	}
+
+	/**
+	 * Determine the number of diffs which must be traversed to reach the full
+	 * snapshot underlying a given value. This stops once the maximum chain depth
+	 * is reached, since it is only ever compared against that.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private int internalDepth(int id) {
+		int depth = 0;
+		while (depth < maxChainDepth) {
+			long offset = position(id);
+			if (readByte(offset) == DATA) {
+				break;
+			}
+			// Skip the header and length to reach the parent
+			id = readUV(offset + 1 + sizeUV(readUV(offset + 1)));
+			depth = depth + 1;
+		}
+		return depth;
+	}
+
+	/**
+	 * Construct the full sequence of bytes making up a given value, by applying
+	 * each diff in its chain in turn.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private byte[] internalMaterialize(int id) {
+		long offset = position(id);
+		byte header = readByte(offset);
+		int size = readUV(offset + 1);
+		offset = offset + 1 + sizeUV(size);
+		if (header == DATA) {
+			byte[] bytes = new byte[size];
+			readBytes(offset, bytes, 0, size);
+			return bytes;
+		} else {
+			int p = readUV(offset);
+			offset += sizeUV(p);
+			int o = readUV(offset);
+			offset += sizeUV(o);
+			int l = readUV(offset);
+			offset += sizeUV(l);
+			int n = size - (sizeUV(p) + sizeUV(o) + sizeUV(l));
+			byte[] bytes = new byte[n];
+			readBytes(offset, bytes, 0, n);
+			// Reuse parent if already materialised
+			byte[] parent = cache.peek(p);
+			if (parent == null) {
+				parent = internalMaterialize(p);
+			}
+			return splice(parent, o, l, bytes);
+		}
+	}
+
+	/**
+	 * Determine the changes needed to turn one byte sequence into another, when
+	 * this is cheaper than writing the latter in full. Each change (or
+	 * <i>hunk</i>) occupies four elements of the result: the offset and length of
+	 * the section replaced, followed by the offset and length of its replacement
+	 * in the new sequence. Hunks are in ascending order and do not overlap.
+	 * </p>
+	 * <p>
+	 * Any common prefix and suffix is stripped first, leaving a single hunk. When
+	 * permitted, the remainder is then diffed (with a bounded cost) to see whether
+	 * splitting it into several smaller hunks is cheaper still.
+	 * </p>
+	 *
+	 * @param before   The current sequence.
+	 * @param after    The new sequence.
+	 * @param maxHunks The maximum number of hunks permitted.
+	 * @return The hunks (which are empty if the sequences are identical), or
+	 *         <code>null</code> if writing the new sequence in full is no more
+	 *         expensive.
+	 */
+	private int[] internalDiff(byte[] before, byte[] after, int maxHunks) {
+		final int limit = Math.min(before.length, after.length);
+		int prefix = 0;
+		while (prefix < limit && before[prefix] == after[prefix]) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < (limit - prefix) && before[before.length - suffix - 1] == after[after.length - suffix - 1]) {
+			suffix++;
+		}
+		int m = before.length - prefix - suffix;
+		int n = after.length - prefix - suffix;
+		if (m == 0 && n == 0) {
+			// Nothing has changed
+			return new int[0];
+		}
+		int[] hunks = { prefix, m, prefix, n };
+		long cost = internalCost(hunks);
+		if (maxHunks > 1 && m > 0 && n > 0) {
+			int[] Z = Algorithms.diff(Arrays.copyOfRange(before, prefix, prefix + m),
+					Arrays.copyOfRange(after, prefix, prefix + n), MAX_DIFF_COST);
+			int[] split = (Z == null) ? null : internalHunks(Z, n, prefix);
+			if (split != null && (split.length >> 2) <= maxHunks && internalCost(split) < cost) {
+				hunks = split;
+				cost = internalCost(split);
+			}
+		}
+		// Only worthwhile if smaller than a full snapshot
+		return (cost < 1 + sizeUV(after.length) + after.length) ? hunks : null;
+	}
+
+	/**
+	 * Convert a mapping between two byte sequences (see
+	 * <code>Algorithms.diff()</code>) into hunks. Hunks separated by only a few
+	 * unchanged bytes are merged, since this is cheaper than writing a separate
+	 * packet for each.
+	 *
+	 * @param Z      The mapping from the current sequence to the new sequence.
+	 * @param n      The length of the new sequence.
+	 * @param offset The offset to add to every hunk.
+	 * @return
+	 */
+	private static int[] internalHunks(int[] Z, int n, int offset) {
+		int[] hunks = new int[16];
+		int count = 0;
+		int i = 0, j = 0;
+		while (i < Z.length || j < n) {
+			if (i < Z.length && Z[i] == j) {
+				i++;
+				j++;
+				continue;
+			}
+			int start = i;
+			while (i < Z.length && Z[i] < 0) {
+				i++;
+			}
+			int end = (i < Z.length) ? Z[i] : n;
+			if (count > 0 && (offset + start) - (hunks[count - 4] + hunks[count - 3]) <= MAX_HUNK_GAP) {
+				// Merge with previous hunk
+				hunks[count - 3] = (offset + i) - hunks[count - 4];
+				hunks[count - 1] = (offset + end) - hunks[count - 2];
+			} else {
+				if (count == hunks.length) {
+					hunks = Arrays.copyOf(hunks, count * 2);
+				}
+				hunks[count++] = offset + start;
+				hunks[count++] = i - start;
+				hunks[count++] = offset + j;
+				hunks[count++] = end - j;
+			}
+			j = end;
+		}
+		return Arrays.copyOf(hunks, count);
+	}
+
+	/**
+	 * Estimate the number of bytes needed to write a given set of hunks as diffs.
+	 *
+	 * @param hunks
+	 * @return
+	 */
+	private long internalCost(int[] hunks) {
+		long cost = 0;
+		for (int i = 0; i < hunks.length; i += 4) {
+			int payload = sizeUV(size) + sizeUV(hunks[i]) + sizeUV(hunks[i + 1]) + hunks[i + 3];
+			cost += 1 + sizeUV(payload) + payload;
+		}
+		return cost;
+	}
+
+	/**
+	 * Replace a section of a given byte array with a sequence of bytes, producing
+	 * a new array.
+	 *
+	 * @param bytes  The original bytes.
+	 * @param offset The start of the section being replaced.
+	 * @param length The length of the section being replaced.
+	 * @param data   The replacement bytes.
+	 * @return
+	 */
+	private static byte[] splice(byte[] bytes, int offset, int length, byte[] data) {
+		byte[] r = new byte[(bytes.length - length) + data.length];
+		System.arraycopy(bytes, 0, r, 0, offset);
+		System.arraycopy(data, 0, r, offset, data.length);
+		System.arraycopy(bytes, offset + length, r, offset + data.length, bytes.length - (offset + length));
+		return r;
+	}
+
+	/**
+	 * Check whether the payload of a given key packet matches a given byte
+	 * sequence exactly.
+	 *
+	 * @param bytes
+	 * @param id
+	 * @return
+	 */
+	private boolean internalEquals(byte[] bytes, int id) {
+		long offset = position(id);
+		if (readUV(offset + 1) != bytes.length) {
+			return false;
+		} else {
+			offset = offset + 1 + sizeUV(bytes.length);
+			for (int i = 0; i != bytes.length; ++i) {
+				if (bytes[i] != readByte(offset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Print a human-readable representation of every packet in this ledger, which
+	 * is useful for debugging.
+	 */
+	void print() {
+		for (int i = 0; i != size; ++i) {
+			long offset = position(i);
+			byte header = readByte(offset);
+			int length = readUV(offset + 1);
+			byte[] bytes = new byte[length];
+			readBytes(offset + 1 + sizeUV(length), bytes, 0, length);
+			switch (header) {
+			case KEY:
+				System.out
+						.println("[" + i + "]\t" + toString(header) + ":" + length + ":\"" + new String(bytes) + "\"");
+				break;
+			case DATA:
+				System.out.println("[" + i + "]\t" + toString(header) + ":" + length + ":" + Arrays.toString(bytes));
+				break;
+			case DIFF: {
+				long p = offset + 1 + sizeUV(length);
+				int parent = readUV(p);
+				int o = readUV(p + sizeUV(parent));
+				int l = readUV(p + sizeUV(parent) + sizeUV(o));
+				int n = sizeUV(parent) + sizeUV(o) + sizeUV(l);
+				System.out.println("[" + i + "]\t" + toString(header) + ":" + length + ":" + parent + ":" + o + ":" + l
+						+ ":" + Arrays.toString(Arrays.copyOfRange(bytes, n, bytes.length)));
+				break;
+			}
+			case TRANSACTION: {
+				String r = "";
+				for (long p = offset + 1 + sizeUV(length), end = p + length; p < end;) {
+					int k = readUV(p);
+					p += sizeUV(k);
+					int v = readUV(p);
+					p += sizeUV(v);
+					r += (r.isEmpty() ? "" : ", ") + k + "=" + v;
+				}
+				System.out.println("[" + i + "]\t" + toString(header) + ":" + length + ":[" + r + "]");
+			}
+			}
+		}
+	}
+
+	private static String toString(byte header) {
+		switch (header) {
+		case KEY:
+			return "key";
+		case DATA:
+			return "data";
+		case DIFF:
+			return "diff";
+		case TRANSACTION:
+			return "txn";
+		}
+		throw new IllegalArgumentException(Integer.toBinaryString(header));
+	}
+}
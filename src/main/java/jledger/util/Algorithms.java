@@ -13,6 +13,8 @@
 // limitations under the License.
 package jledger.util;
 
+import java.util.Arrays;
+
 public class Algorithms {
 
 	/**
@@ -44,45 +46,206 @@ public class Algorithms {
 	 * @return The resulting mapping
 	 */
 	public static int[] longestCommonSubsequence(int[] X, int[] Y) {
-		final int m = X.length;
-		final int n = Y.length;
-		final int[] C = new int[m * n];
-		// Calculate the lengths
-		for (int i = 1; i != m; ++i) {
-			for (int j = 1; j != n; ++j) {
-				int ij = i + (j * m);
-				if (X[i] == Y[j]) {
-					C[ij] = C[(i - 1) + ((j - 1) * m)] + 1;
-				} else {
-					final int Cim1j = C[(i - 1) + (j * m)];
-					final int Cijm1 = C[i + ((j - 1) * m)];
-					C[ij] = (Cim1j >= Cijm1) ? Cim1j : Cijm1;
-				}
-			}
+		return diff(X, Y);
+	}
+
+	/**
+	 * <p>
+	 * Compute a longest common subsequence of two sequences using Myers' difference
+	 * algorithm. This produces a mapping from elements in X to elements in Y, as
+	 * for <code>longestCommonSubsequence()</code>. The algorithm takes
+	 * <code>O((N+M)D)</code> time, where <code>D</code> is the number of elements
+	 * inserted or deleted, and so is fast for sequences which are mostly similar.
+	 * </p>
+	 * <p>
+	 * This uses the linear space variant of the algorithm. That is, rather than
+	 * recording the furthest reaching paths for every edit distance, it searches
+	 * from both ends at once for the <i>middle snake</i> of an optimal path and
+	 * then recurses on either side of it. Hence, beyond the mapping itself, only
+	 * <code>O(N+M)</code> space is required.
+	 * </p>
+	 *
+	 * @param X The left sequence
+	 * @param Y The right sequence
+	 * @return The resulting mapping
+	 */
+	public static int[] diff(int[] X, int[] Y) {
+		return diff(X, Y, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Compute a longest common subsequence of two sequences using Myers'
+	 * difference algorithm, giving up if they differ by more than a given number
+	 * of insertions and deletions. This bounds the time taken on sequences which
+	 * are not similar.
+	 *
+	 * @param X       The left sequence
+	 * @param Y       The right sequence
+	 * @param maxCost The maximum number of insertions and deletions.
+	 * @return The resulting mapping, or <code>null</code> if the sequences differ
+	 *         by more than <code>maxCost</code>.
+	 */
+	public static int[] diff(int[] X, int[] Y, int maxCost) {
+		return diff((i, j) -> X[i] == Y[j], X.length, Y.length, maxCost);
+	}
+
+	/**
+	 * Compute a longest common subsequence of two byte sequences using Myers'
+	 * difference algorithm, as for <code>diff(int[],int[])</code>.
+	 *
+	 * @param X The left sequence
+	 * @param Y The right sequence
+	 * @return The resulting mapping
+	 */
+	public static int[] diff(byte[] X, byte[] Y) {
+		return diff(X, Y, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Compute a longest common subsequence of two byte sequences using Myers'
+	 * difference algorithm, as for <code>diff(int[],int[],int)</code>.
+	 *
+	 * @param X       The left sequence
+	 * @param Y       The right sequence
+	 * @param maxCost The maximum number of insertions and deletions.
+	 * @return The resulting mapping, or <code>null</code> if the sequences differ
+	 *         by more than <code>maxCost</code>.
+	 */
+	public static int[] diff(byte[] X, byte[] Y, int maxCost) {
+		return diff((i, j) -> X[i] == Y[j], X.length, Y.length, maxCost);
+	}
+
+	/**
+	 * Compares elements of the left sequence against elements of the right
+	 * sequence.
+	 */
+	private interface Equality {
+		boolean equals(int i, int j);
+	}
+
+	private static int[] diff(Equality eq, int n, int m, int maxCost) {
+		int[] Z = new int[n];
+		Arrays.fill(Z, -1);
+		return diff(eq, Z, 0, n, 0, m, maxCost) ? Z : null;
+	}
+
+	/**
+	 * Compute the mapping for a given region of the two sequences. This strips
+	 * any common prefix and suffix, and then splits the remainder in two at the
+	 * middle snake.
+	 *
+	 * @param eq      Compares elements of the two sequences.
+	 * @param Z       The mapping being constructed.
+	 * @param xs      Start of region in left sequence.
+	 * @param xe      End of region in left sequence.
+	 * @param ys      Start of region in right sequence.
+	 * @param ye      End of region in right sequence.
+	 * @param maxCost The maximum number of insertions and deletions permitted
+	 *                within this region.
+	 * @return False if the region differs by more than <code>maxCost</code>.
+	 */
+	private static boolean diff(Equality eq, int[] Z, int xs, int xe, int ys, int ye, int maxCost) {
+		// Strip common prefix
+		while (xs < xe && ys < ye && eq.equals(xs, ys)) {
+			Z[xs++] = ys++;
+		}
+		// Strip common suffix
+		while (xs < xe && ys < ye && eq.equals(xe - 1, ye - 1)) {
+			Z[--xe] = --ye;
+		}
+		if (xs == xe || ys == ye) {
+			// Everything remaining is either inserted or deleted
+			return (xe - xs) + (ye - ys) <= maxCost;
+		}
+		int[] split = middleSnake(eq, xs, xe, ys, ye, maxCost);
+		if (split == null) {
+			return false;
 		}
-		// Finally, extract the LCS
-		int[] Z = new int[X.length];
-		extractSubsequence(C, Z, m - 1, n - 1);
-		return Z;
+		// Since both halves lie on an optimal path, there is no need to bound
+		// them further.
+		diff(eq, Z, xs, split[0], ys, split[1], Integer.MAX_VALUE);
+		diff(eq, Z, split[0], xe, split[1], ye, Integer.MAX_VALUE);
+		return true;
 	}
 
-	public static void extractSubsequence(int[] C, int[] Z, int i, int j) {
-		final int m = Z.length;
-		if(i > 0 && j > 0) {
-			int Cij = C[i + (j * m)];
-			final int Cim1j = C[(i - 1) + (j * m)];
-			final int Cijm1 = C[i + ((j - 1) * m)];
-			if(Cij == Cim1j) {
-				Z[i] = -1;
-				extractSubsequence(C, Z, i - 1, j);
-			} else if(Cij == Cijm1) {
-				Z[i] = -1;
-				extractSubsequence(C, Z, i, j - 1);
-			} else {
-				extractSubsequence(C, Z, i - 1, j - 1);
-				Z[i] = j;
+	/**
+	 * Find a point on an optimal path through a given region by searching forwards
+	 * from its start and backwards from its end simultaneously, until the two
+	 * searches overlap. For each diagonal <code>k</code>, the arrays record the
+	 * furthest point reached along it by each search.
+	 *
+	 * @return The point at which to split the region, or <code>null</code> if it
+	 *         differs by more than <code>maxCost</code>.
+	 */
+	private static int[] middleSnake(Equality eq, int xs, int xe, int ys, int ye, int maxCost) {
+		final int n = xe - xs;
+		final int m = ye - ys;
+		final int max = (n + m + 1) / 2;
+		final int offset = max + 1;
+		final int length = (2 * max) + 3;
+		final int[] fwd = new int[length];
+		final int[] bwd = new int[length];
+		Arrays.fill(fwd, -1);
+		Arrays.fill(bwd, -1);
+		fwd[offset + 1] = 0;
+		bwd[offset + 1] = 0;
+		final int delta = n - m;
+		// If the delta is odd, the searches overlap during a forward step
+		final boolean front = (delta & 1) != 0;
+		// Diagonals which have run off the edge are excluded from the search
+		int fstart = 0, fend = 0, bstart = 0, bend = 0;
+		for (int d = 0; d <= max; ++d) {
+			if ((2 * d) - 1 > maxCost) {
+				return null;
+			}
+			// Forward search
+			for (int k = -d + fstart; k <= d - fend; k += 2) {
+				int i = offset + k;
+				int x = (k == -d || (k != d && fwd[i - 1] < fwd[i + 1])) ? fwd[i + 1] : fwd[i - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && eq.equals(xs + x, ys + y)) {
+					x++;
+					y++;
+				}
+				fwd[i] = x;
+				if (x > n) {
+					fend += 2;
+				} else if (y > m) {
+					fstart += 2;
+				} else if (front) {
+					int j = offset + delta - k;
+					if (j >= 0 && j < length && bwd[j] != -1 && x >= n - bwd[j]) {
+						// Found with cost 2d-1
+						return ((2 * d) - 1 > maxCost) ? null : new int[] { xs + x, ys + y };
+					}
+				}
+			}
+			// Backward search
+			for (int k = -d + bstart; k <= d - bend; k += 2) {
+				int i = offset + k;
+				int x = (k == -d || (k != d && bwd[i - 1] < bwd[i + 1])) ? bwd[i + 1] : bwd[i - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && eq.equals(xe - x - 1, ye - y - 1)) {
+					x++;
+					y++;
+				}
+				bwd[i] = x;
+				if (x > n) {
+					bend += 2;
+				} else if (y > m) {
+					bstart += 2;
+				} else if (!front) {
+					int j = offset + delta - k;
+					if (j >= 0 && j < length && fwd[j] != -1 && fwd[j] >= n - x) {
+						// Found with cost 2d
+						int fx = fwd[j];
+						return ((2 * d) > maxCost) ? null : new int[] { xs + fx, ys + fx - (j - offset) };
+					}
+				}
 			}
 		}
+		// Unreachable, since the searches must overlap by the final step
+		throw new IllegalStateException("no middle snake");
 	}
 
 	static void printDiff(int[] X, int[] Y) {
@@ -13,6 +13,8 @@
 // limitations under the License.
 package jledger.util;
 
+import java.nio.ByteBuffer;
+
 import jledger.core.Value;
 
 /**
@@ -39,6 +41,16 @@ public class ByteArrayValue implements Value {
 		return bytes[index];
 	}
 
+	@Override
+	public void read(int index, byte[] bytes, int offset, int length) {
+		System.arraycopy(this.bytes, index, bytes, offset, length);
+	}
+
+	@Override
+	public void read(int index, ByteBuffer buffer) {
+		buffer.put(bytes, index, buffer.remaining());
+	}
+
 	@Override
 	public Delta write(int index, byte b) {
 		return new Delta(this, index, 1, b);
@@ -49,63 +61,257 @@ public class ByteArrayValue implements Value {
 		return new Delta(this, index, length, bytes);
 	}
 
+	/**
+	 * Read bytes from a given value into a buffer until it has no remaining space,
+	 * using the value's bulk array read.
+	 *
+	 * @param value
+	 * @param index
+	 * @param buffer
+	 */
+	static void read(Value value, int index, ByteBuffer buffer) {
+		int n = buffer.remaining();
+		if (buffer.hasArray()) {
+			// Read directly into the backing array
+			value.read(index, buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+			buffer.position(buffer.position() + n);
+		} else {
+			byte[] bytes = new byte[n];
+			value.read(index, bytes, 0, n);
+			buffer.put(bytes);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Represents a sequence of one or more edits over some original value. Rather
+	 * than wrapping each edit around the last, a delta is represented as a
+	 * <i>piece table</i>. That is, a sorted sequence of pieces where each
+	 * identifies a section of either the original value, or of the bytes
+	 * introduced by some edit. Editing a delta produces a new piece table over the
+	 * same original value, so reading is logarithmic in the number of pieces
+	 * regardless of how many edits were made.
+	 * </p>
+	 * <p>
+	 * For the purposes of <code>Value.Delta</code>, the sequence of edits is
+	 * summarised as a single replacement of the smallest section of the original
+	 * value which encloses them all.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
 	public static class Delta implements Value.Delta {
+		/**
+		 * The original value being modified.
+		 */
 		private final Value parent;
+		/**
+		 * The size of the original value.
+		 */
+		private final int psize;
+		/**
+		 * The size of this value.
+		 */
+		private final int size;
+		/**
+		 * The start of the section of the original value which has been replaced.
+		 */
 		private final int offset;
+		/**
+		 * The length of the section of the original value which has been replaced.
+		 */
 		private final int length;
-		private final byte[] bytes;
+		/**
+		 * The replacement bytes, which are only computed when first requested.
+		 */
+		private byte[] bytes;
+		/**
+		 * The position within this value of the first byte of each piece. This is
+		 * strictly increasing, and the first piece always starts at zero.
+		 */
+		private int[] starts;
+		/**
+		 * The position within the source of each piece of its first byte.
+		 */
+		private int[] sources;
+		/**
+		 * The source of each piece, where <code>null</code> identifies the original
+		 * value.
+		 */
+		private byte[][] buffers;
+		/**
+		 * The number of pieces in this value.
+		 */
+		private int npieces;
 
 		public Delta(Value parent, int offset, int length, byte... bytes) {
-			this.parent = parent;
-			this.offset = offset;
-			this.length = length;
-			this.bytes = bytes;
+			if (parent instanceof ByteArrayValue.Delta) {
+				// Flatten into the existing piece table.
+				ByteArrayValue.Delta d = (ByteArrayValue.Delta) parent;
+				this.parent = d.parent;
+				this.psize = d.psize;
+				this.size = (d.size - length) + bytes.length;
+				// Summarise as replacement enclosing both
+				int suffix = Math.min(d.psize - (d.offset + d.length), d.size - (offset + length));
+				this.offset = Math.min(d.offset, offset);
+				this.length = d.psize - (this.offset + suffix);
+				splice(d.starts, d.sources, d.buffers, d.npieces, d.size, offset, length, bytes);
+			} else {
+				this.parent = parent;
+				this.psize = parent.size();
+				this.size = (psize - length) + bytes.length;
+				this.offset = offset;
+				this.length = length;
+				this.bytes = bytes;
+				// Start from a single piece covering the original value
+				int n = (psize == 0) ? 0 : 1;
+				splice(new int[1], new int[1], new byte[1][], n, psize, offset, length, bytes);
+			}
 		}
 
 		@Override
 		public jledger.core.Value parent() {
 			return parent;
 		}
-		
+
 		@Override
 		public int size() {
-			return parent.size() + (bytes.length - length);
+			return size;
 		}
 
 		@Override
 		public int length() {
 			return length;
 		}
-		
+
 		@Override
 		public int offset() {
 			return offset;
 		}
-		
+
 		@Override
 		public byte[] bytes() {
+			if (bytes == null) {
+				byte[] bs = new byte[(size - psize) + length];
+				read(offset, bs, 0, bs.length);
+				bytes = bs;
+			}
 			return bytes;
 		}
-		
+
 		@Override
 		public byte read(int index) {
-			if (index < offset) {
-				return parent.read(index);
-			} else if (index >= (offset + bytes.length)) {
-				return parent.read(index + (bytes.length - length));
+			int i = find(index);
+			int start = starts[i];
+			byte[] buffer = buffers[i];
+			if (buffer == null) {
+				return parent.read(sources[i] + (index - start));
 			} else {
-				return bytes[index - offset];
+				return buffer[sources[i] + (index - start)];
 			}
 		}
 
+		@Override
+		public void read(int index, byte[] bytes, int offset, int length) {
+			final int end = index + length;
+			for (int i = find(index); index < end; ++i) {
+				// Determine how much can be read from this piece
+				int pend = (i + 1) < npieces ? starts[i + 1] : size;
+				int m = Math.min(end, pend) - index;
+				int src = sources[i] + (index - starts[i]);
+				byte[] buffer = buffers[i];
+				if (buffer == null) {
+					parent.read(src, bytes, offset, m);
+				} else {
+					System.arraycopy(buffer, src, bytes, offset, m);
+				}
+				index += m;
+				offset += m;
+			}
+		}
+
+		@Override
+		public void read(int index, ByteBuffer buffer) {
+			ByteArrayValue.read(this, index, buffer);
+		}
+
 		@Override
 		public Delta write(int index, byte b) {
 			return new ByteArrayValue.Delta(this, index, 1, b);
 		}
-		
+
 		@Override
 		public Delta replace(int index, int length, byte[] bytes) {
 			return new ByteArrayValue.Delta(this, index, length, bytes);
 		}
+
+		/**
+		 * Find the piece containing a given position within this value.
+		 *
+		 * @param index
+		 * @return
+		 */
+		private int find(int index) {
+			int low = 0;
+			int high = npieces - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (starts[mid] <= index) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Initialise the piece table of this delta by replacing a section of a given
+		 * piece table with a new sequence of bytes.
+		 *
+		 * @param starts  The piece starts of the table being edited.
+		 * @param sources The piece sources of the table being edited.
+		 * @param buffers The piece buffers of the table being edited.
+		 * @param n       The number of pieces in the table being edited.
+		 * @param size    The size of the value represented by the table.
+		 * @param offset  The start of the section being replaced.
+		 * @param length  The length of the section being replaced.
+		 * @param bytes   The replacement bytes.
+		 */
+		private void splice(int[] starts, int[] sources, byte[][] buffers, int n, int size, int offset, int length,
+				byte[] bytes) {
+			// At most one piece is split in two, and one new piece is added.
+			this.starts = new int[n + 2];
+			this.sources = new int[n + 2];
+			this.buffers = new byte[n + 2][];
+			int k = 0;
+			int i = 0;
+			// Copy pieces starting before the replaced section
+			for (; i < n && starts[i] < offset; ++i, ++k) {
+				this.starts[k] = starts[i];
+				this.sources[k] = sources[i];
+				this.buffers[k] = buffers[i];
+			}
+			// Insert the replacement bytes
+			if (bytes.length > 0) {
+				this.starts[k] = offset;
+				this.sources[k] = 0;
+				this.buffers[k++] = bytes;
+			}
+			// Copy pieces ending after the replaced section
+			final int end = offset + length;
+			final int shift = bytes.length - length;
+			for (i = Math.max(0, i - 1); i < n; ++i) {
+				int pend = (i + 1) < n ? starts[i + 1] : size;
+				if (pend > end) {
+					int start = Math.max(starts[i], end);
+					this.starts[k] = start + shift;
+					this.sources[k] = sources[i] + (start - starts[i]);
+					this.buffers[k++] = buffers[i];
+				}
+			}
+			this.npieces = k;
+		}
 	}
 }
@@ -0,0 +1,634 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>
+ * Provides a persistent ledger implementation which stores packets in a file.
+ * The file is accessed through one or more memory-mapped segments, such that
+ * reads are served directly out of the operating system's page cache without
+ * copying. Opening an existing ledger maps the file rather than reading it, and
+ * the cost of doing so is dominated by restoring the ledger's indices.
+ * </p>
+ * <p>
+ * The file is a journal consisting of a fixed-size header followed by a
+ * sequence of <i>frames</i>. Each frame holds one or more packets, and begins
+ * with the length of those packets and their CRC32C checksum. A frame is open
+ * whilst packets are being appended to it, and is sealed by writing its length
+ * and checksum when the ledger is flushed (or the frame grows large). Thus,
+ * each flush writes a single frame. When a ledger is opened, frames are
+ * replayed until the first which is unsealed, incomplete or fails its
+ * checksum, and everything from there on is discarded. The header records a
+ * checkpoint, before which every frame is known to be durable and so need not
+ * be checked.
+ * </p>
+ * <p>
+ * To avoid restoring the indices from every packet when a ledger is opened,
+ * they can be checkpointed to an accompanying index file (see
+ * <code>checkpoint()</code>). This holds the packet positions, key index and
+ * versions of each key as arrays of primitives. On open, the index file is
+ * mapped and these arrays are served directly from it, whilst anything added
+ * afterwards is indexed separately. Only frames appended after the checkpoint
+ * are then replayed, so the cost of opening a ledger depends only on how much
+ * was appended since. The header of the ledger file holds a random nonce,
+ * which is also recorded in the index file, so that an index is never loaded
+ * for the wrong ledger.
+ * </p>
+ * <p>
+ * Since the file is extended in large chunks ahead of time, any bytes beyond
+ * the last frame are ignored. As for
+ * <code>ByteArrayLedger</code>, this supports a single writer and any number of
+ * concurrent readers. Remapping a segment leaves the previous mapping intact
+ * for readers which still hold it.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class FileLedger extends AbstractLedger implements Closeable, Flushable {
+	/**
+	 * Identifies a ledger file, and occupies the first eight bytes of the header.
+	 */
+	private static final long MAGIC = 0x4A4C454447455232L;
+	/**
+	 * The number of bytes in the file header. This consists of the magic number,
+	 * followed by the checkpoint position and the ledger's nonce.
+	 */
+	private static final int HEADER = 24;
+	/**
+	 * The number of bytes in a frame header. This consists of the length of the
+	 * frame's packets, followed by their checksum.
+	 */
+	private static final int FRAME_HEADER = 8;
+	/**
+	 * The size beyond which an open frame is sealed, even if the ledger has not
+	 * been flushed. This bounds the amount of data checked on recovery which
+	 * follows the checkpoint.
+	 */
+	private static final int MAX_FRAME_SIZE = 1024 * 1024;
+	/**
+	 * Determines the maximum size of a mapped segment. This cannot exceed 2GB as
+	 * that is the limit for any single <code>MappedByteBuffer</code>.
+	 */
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	/**
+	 * The initial size of a newly mapped segment. Segments are doubled in size
+	 * until they reach <code>SEGMENT_SIZE</code>.
+	 */
+	private static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+	/**
+	 * Identifies an index file (and the version of its format), and occupies its
+	 * first eight bytes.
+	 */
+	private static final long INDEX_MAGIC = 0x4A4C494E44455833L;
+	/**
+	 * The number of bytes in the index file header. This consists of the magic
+	 * number, the checksum of everything which follows, the number of packets,
+	 * the nonce of the ledger the index belongs to, the position in the ledger
+	 * file covered by the index and the position of the last frame before it.
+	 */
+	private static final int INDEX_HEADER = 40;
+
+	/**
+	 * The underlying file channel.
+	 */
+	private final FileChannel channel;
+	/**
+	 * The index file holding the most recent checkpoint.
+	 */
+	private final Path index;
+	/**
+	 * The mapped segments of the file. Every segment except the last is mapped
+	 * with exactly <code>SEGMENT_SIZE</code> bytes.
+	 */
+	private volatile MappedByteBuffer[] segments;
+	/**
+	 * The number of bytes of the file which are currently mapped.
+	 */
+	private long capacity;
+	/**
+	 * The position within the file of the first inactive byte.
+	 */
+	private long limit;
+	/**
+	 * The position within the file following the last frame covered by the index
+	 * file. If this matches <code>limit</code>, the index file is up to date.
+	 */
+	private long indexed;
+	/**
+	 * A random number chosen when the ledger file was created. This is recorded
+	 * in every index file, so an index file cannot be loaded for a ledger other
+	 * than the one it was written for (e.g. if the ledger file was recreated).
+	 */
+	private long nonce;
+	/**
+	 * The position within the file of the first byte of each packet.
+	 */
+	private volatile long[] positions;
+	/**
+	 * The positions of the packets covered by the index file loaded on open (if
+	 * any), served directly from its mapping. The position of any later packet
+	 * <code>i</code> is held at <code>i - ncheckpointed</code> in
+	 * <code>positions</code>.
+	 */
+	private LongBuffer checkpointed;
+	/**
+	 * The number of packets covered by <code>checkpointed</code>.
+	 */
+	private int ncheckpointed;
+	/**
+	 * The index of the first segment which has been modified since the last
+	 * flush, or <code>segments.length</code> if none.
+	 */
+	private int dirty;
+	/**
+	 * The position within the file of the currently open frame, or
+	 * <code>-1</code> if there is none.
+	 */
+	private long frame;
+	/**
+	 * The position within the file of the most recently sealed frame, or
+	 * <code>-1</code> if there is none.
+	 */
+	private long sealed;
+
+	/**
+	 * Open a ledger stored in a given file, creating it if it does not exist.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public FileLedger(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.index = new File(file.getPath() + ".idx").toPath();
+		this.segments = new MappedByteBuffer[0];
+		this.positions = new long[20];
+		this.frame = -1;
+		this.sealed = -1;
+		// Map all existing bytes
+		ensureCapacity(Math.max(HEADER, channel.size()));
+		long magic = segments[0].getLong(0);
+		long checkpoint = segments[0].getLong(8);
+		if (magic == 0 && checkpoint == 0) {
+			// Initialise a fresh ledger, discarding any index left from a previous one
+			Files.deleteIfExists(index);
+			this.nonce = new SecureRandom().nextLong();
+			segments[0].putLong(0, MAGIC);
+			segments[0].putLong(8, HEADER);
+			segments[0].putLong(16, nonce);
+			this.limit = HEADER;
+			this.indexed = HEADER;
+			this.dirty = 0;
+		} else if (magic != MAGIC) {
+			throw new IOException("invalid ledger file");
+		} else {
+			// Replay whatever follows the last index checkpoint (if any)
+			this.nonce = segments[0].getLong(16);
+			this.indexed = loadIndex();
+			this.limit = recover(indexed, checkpoint);
+			this.dirty = segments.length;
+		}
+	}
+
+	/**
+	 * Flush this ledger and then save its indices to the index file, such that
+	 * reopening the ledger need only replay packets appended after this point.
+	 * The index file is written in full and made durable before replacing any
+	 * existing one, so a failure part way through leaves the previous checkpoint
+	 * intact. As for frames before the checkpoint in the ledger file, its
+	 * contents are therefore not checksummed, and only its header is.
+	 *
+	 * @throws IOException
+	 */
+	public void checkpoint() throws IOException {
+		flush();
+		final int size = this.size;
+		long length = INDEX_HEADER + (8L * size) + (4L * sizeOfIndex());
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("index too large");
+		}
+		Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buffer.putLong(0, INDEX_MAGIC);
+			buffer.putInt(12, size);
+			buffer.putLong(16, nonce);
+			buffer.putLong(24, limit);
+			buffer.putLong(32, sealed);
+			buffer.position(INDEX_HEADER);
+			LongBuffer ps = buffer.asLongBuffer();
+			if (checkpointed != null) {
+				ps.put(checkpointed.duplicate());
+			}
+			ps.put(positions, 0, size - ncheckpointed);
+			buffer.position(INDEX_HEADER + (8 * size));
+			saveIndex(buffer.asIntBuffer());
+			buffer.putInt(8, checksum(buffer, 12, INDEX_HEADER));
+			buffer.force();
+		}
+		Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexed = limit;
+	}
+
+	/**
+	 * Force all changes made to this ledger to be written to the storage device.
+	 */
+	@Override
+	public void flush() throws IOException {
+		seal();
+		MappedByteBuffer[] segments = this.segments;
+		if (dirty < segments.length) {
+			for (int i = dirty; i < segments.length; ++i) {
+				segments[i].force();
+			}
+			if (dirty > 0) {
+				// Header is always modified alongside packet data
+				segments[0].force();
+			}
+			dirty = segments.length;
+			// Everything written so far is now durable. Record this in the header,
+			// which is itself made durable by the next flush.
+			segments[0].putLong(8, limit);
+		}
+	}
+
+	/**
+	 * Close this ledger, first checkpointing it if anything has been appended
+	 * since the index file was last written or loaded.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (limit != indexed) {
+			checkpoint();
+		} else {
+			flush();
+		}
+		segments = null;
+		channel.close();
+	}
+
+	@Override
+	protected long position(int id) {
+		final int n = ncheckpointed;
+		return (id < n) ? checkpointed.get(id) : positions[id - n];
+	}
+
+	@Override
+	protected byte readByte(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+	}
+
+	@Override
+	protected void readBytes(long position, byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+			int index = (int) (position & SEGMENT_MASK);
+			// Determine how much can be read from this segment
+			int n = Math.min(length, segment.capacity() - index);
+			segment.position(index);
+			segment.get(bytes, offset, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	protected void write(byte[] header, int n, byte[] payload) {
+		long position = limit;
+		try {
+			if (frame < 0) {
+				// Open a new frame, marking it as unsealed.
+				ensureCapacity(position + FRAME_HEADER + n + payload.length);
+				frame = position;
+				writeBytes(frame, new byte[FRAME_HEADER], FRAME_HEADER);
+				position = position + FRAME_HEADER;
+			} else {
+				ensureCapacity(position + n + payload.length);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		writeBytes(position, header, n);
+		writeBytes(position + n, payload, payload.length);
+		// Update positions array
+		final int index = size - ncheckpointed;
+		if (positions.length == index) {
+			positions = Arrays.copyOf(positions, index * 2);
+		}
+		positions[index] = position;
+		limit = position + n + payload.length;
+		// Seal frame early if it has grown too large
+		if ((limit - frame) > MAX_FRAME_SIZE) {
+			seal();
+		}
+	}
+
+	/**
+	 * Load the indices saved by the most recent checkpoint, if there is one. An
+	 * index file which is missing, corrupt or does not match the ledger file is
+	 * ignored, in which case everything is replayed. To match, the index must
+	 * have been written for this ledger (i.e. have the same nonce), and the
+	 * position it covers must be the end of an intact frame. The indices are
+	 * then served directly from the mapped index file, rather than being copied.
+	 *
+	 * @return The position in the ledger file following the last frame covered by
+	 *         the checkpoint.
+	 * @throws IOException
+	 */
+	private long loadIndex() throws IOException {
+		if (!Files.exists(index)) {
+			return HEADER;
+		}
+		try (FileChannel ch = FileChannel.open(index, StandardOpenOption.READ)) {
+			long length = ch.size();
+			if (length < INDEX_HEADER || length > Integer.MAX_VALUE) {
+				return HEADER;
+			}
+			MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			int size = buffer.getInt(12);
+			long position = buffer.getLong(24);
+			long last = buffer.getLong(32);
+			if (buffer.getLong(0) != INDEX_MAGIC || buffer.getInt(8) != checksum(buffer, 12, INDEX_HEADER)
+					|| buffer.getLong(16) != nonce || size < 0 || (INDEX_HEADER + (8L * size)) > length
+					|| !isFrameEnd(last, position)) {
+				return HEADER;
+			}
+			buffer.position(INDEX_HEADER);
+			LongBuffer ps = buffer.asLongBuffer();
+			ps.limit(size);
+			// The last packet must end the last frame
+			if (size > 0 && (ps.get(size - 1) <= last || ps.get(size - 1) >= position
+					|| next(ps.get(size - 1)) != position)) {
+				return HEADER;
+			}
+			buffer.position(INDEX_HEADER + (8 * size));
+			if (!loadIndex(buffer.asIntBuffer())) {
+				return HEADER;
+			}
+			this.checkpointed = ps.slice();
+			this.ncheckpointed = size;
+			this.size = size;
+			this.sealed = last;
+			return position;
+		}
+	}
+
+	/**
+	 * Check whether a given position is the end of an intact frame starting at
+	 * another given position. If there is no such frame, the position must be
+	 * that of the first frame.
+	 *
+	 * @param start    Position of the frame, or <code>-1</code> if none.
+	 * @param position The position to check.
+	 * @return
+	 */
+	private boolean isFrameEnd(long start, long position) {
+		if (start < 0) {
+			return position == HEADER;
+		} else if (start < HEADER || (start + FRAME_HEADER) >= position || position > capacity) {
+			return false;
+		}
+		byte[] bytes = new byte[FRAME_HEADER];
+		readBytes(start, bytes, 0, FRAME_HEADER);
+		return readInt(bytes, 0) == (position - start - FRAME_HEADER)
+				&& readInt(bytes, 4) == checksum(start + FRAME_HEADER, position);
+	}
+
+	/**
+	 * Replay the frames of an existing ledger to restore its indices. This stops
+	 * at the first frame which is unsealed, incomplete or (after the checkpoint)
+	 * fails its checksum. Anything from that point is zeroed (see
+	 * <code>stale()</code>), so that it cannot be mistaken for a valid frame in
+	 * future.
+	 *
+	 * @param position   Position of the first frame to replay.
+	 * @param checkpoint Position before which all frames are known to be
+	 *                   durable.
+	 * @return The position following the last valid frame.
+	 * @throws IOException
+	 */
+	private long recover(long position, long checkpoint) throws IOException {
+		byte[] bytes = new byte[FRAME_HEADER];
+		long p = position;
+		while ((p + FRAME_HEADER) <= capacity) {
+			readBytes(p, bytes, 0, FRAME_HEADER);
+			int length = readInt(bytes, 0);
+			long start = p + FRAME_HEADER;
+			long end = start + length;
+			if (length <= 0 || end > capacity) {
+				break;
+			} else if (end > checkpoint && checksum(start, end) != readInt(bytes, 4)) {
+				break;
+			}
+			// Frame is valid, so restore its packets
+			for (long q = start; q < end; q = next(q)) {
+				final int index = size - ncheckpointed;
+				if (positions.length == index) {
+					positions = Arrays.copyOf(positions, index * 2);
+				}
+				positions[index] = q;
+				restore(size++);
+			}
+			sealed = p;
+			p = end;
+		}
+		// Discard anything following the last valid frame
+		long end = stale(p);
+		if (end > p) {
+			byte[] zeros = new byte[64 * 1024];
+			for (long q = p; q < end; q += zeros.length) {
+				writeBytes(q, zeros, (int) Math.min(zeros.length, end - q));
+			}
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Determine the extent of any stale bytes starting from a given position.
+	 * These may include further frames (e.g. following a torn write), which are
+	 * skipped without checking them, and the remains of an unsealed frame. The
+	 * stale region ends at the first block which is entirely zero.
+	 *
+	 * @param position Position immediately following the last valid frame.
+	 * @return The position following the last stale byte.
+	 */
+	private long stale(long position) {
+		byte[] bytes = new byte[FRAME_HEADER];
+		byte[] block = new byte[64 * 1024];
+		while (position < capacity) {
+			if ((position + FRAME_HEADER) <= capacity) {
+				readBytes(position, bytes, 0, FRAME_HEADER);
+				long end = position + FRAME_HEADER + readInt(bytes, 0);
+				if (end > (position + FRAME_HEADER) && end <= capacity) {
+					// Looks like a frame, so skip it whole
+					position = end;
+					continue;
+				}
+			}
+			int n = (int) Math.min(block.length, capacity - position);
+			readBytes(position, block, 0, n);
+			int i = 0;
+			while (i < n && block[i] == 0) {
+				i++;
+			}
+			if (i == n) {
+				break;
+			}
+			position += n;
+		}
+		return Math.min(position, capacity);
+	}
+
+	/**
+	 * Seal the currently open frame (if any), by writing its length and checksum.
+	 */
+	private void seal() {
+		if (frame >= 0) {
+			long start = frame + FRAME_HEADER;
+			byte[] bytes = new byte[FRAME_HEADER];
+			writeInt((int) (limit - start), bytes, 0);
+			writeInt(checksum(start, limit), bytes, 4);
+			writeBytes(frame, bytes, FRAME_HEADER);
+			sealed = frame;
+			frame = -1;
+		}
+	}
+
+	/**
+	 * Compute the CRC32C checksum of a given region of the file.
+	 *
+	 * @param start Position of first byte in region.
+	 * @param end   Position following last byte in region.
+	 * @return
+	 */
+	private int checksum(long start, long end) {
+		CRC32C crc = new CRC32C();
+		while (start < end) {
+			ByteBuffer segment = segments[(int) (start >>> SEGMENT_SHIFT)].duplicate();
+			int index = (int) (start & SEGMENT_MASK);
+			// Determine how much can be checked in this segment
+			int n = (int) Math.min(end - start, segment.capacity() - index);
+			segment.limit(index + n);
+			segment.position(index);
+			crc.update(segment);
+			start += n;
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Compute the CRC32C checksum of a given region of a buffer.
+	 *
+	 * @param buffer The buffer being checked.
+	 * @param start  Index of first byte in region.
+	 * @param end    Index following last byte in region.
+	 * @return
+	 */
+	private static int checksum(ByteBuffer buffer, int start, int end) {
+		ByteBuffer region = buffer.duplicate();
+		region.limit(end);
+		region.position(start);
+		CRC32C crc = new CRC32C();
+		crc.update(region);
+		return (int) crc.getValue();
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	private static void writeInt(int value, byte[] bytes, int offset) {
+		bytes[offset] = (byte) (value >> 24);
+		bytes[offset + 1] = (byte) (value >> 16);
+		bytes[offset + 2] = (byte) (value >> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private void writeBytes(long position, byte[] bytes, int length) {
+		int offset = 0;
+		while (length > 0) {
+			ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+			int index = (int) (position & SEGMENT_MASK);
+			// Determine how much can be written to this segment
+			int n = Math.min(length, segment.capacity() - index);
+			segment.position(index);
+			segment.put(bytes, offset, n);
+			// Track earliest modified segment
+			dirty = Math.min(dirty, (int) (position >>> SEGMENT_SHIFT));
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Ensure that at least a given number of bytes of the file are mapped. The
+	 * last segment is doubled in size until it is full, after which a new segment
+	 * is started.
+	 *
+	 * @param required
+	 * @throws IOException
+	 */
+	private void ensureCapacity(long required) throws IOException {
+		while (capacity < required) {
+			MappedByteBuffer[] segments = this.segments;
+			int n = segments.length;
+			long length;
+			if (n == 0 || segments[n - 1].capacity() == SEGMENT_SIZE) {
+				// Start a new segment
+				n = n + 1;
+				length = INITIAL_SEGMENT_SIZE;
+			} else {
+				// Grow the last segment
+				length = Math.min(SEGMENT_SIZE, segments[n - 1].capacity() * 2L);
+			}
+			long start = (n - 1) * SEGMENT_SIZE;
+			// Cover everything required in as few steps as possible
+			while (length < SEGMENT_SIZE && (start + length) < required) {
+				length = length * 2;
+			}
+			// Always copy, so concurrent readers never see a partial update.
+			segments = Arrays.copyOf(segments, n);
+			segments[n - 1] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+			this.segments = segments;
+			capacity = start + length;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jledger.core.Ledger;
+import jledger.core.Value;
+
+/**
+ * <p>
+ * Wraps a ledger such that transactions from concurrent callers are appended
+ * and made durable in batches. Transactions are placed on a queue, from which
+ * a single committer thread appends them to the underlying ledger. Once a batch
+ * has been appended, the ledger is flushed (if it is <code>Flushable</code>)
+ * and every transaction in the batch is completed. Thus, a persistent ledger
+ * performs one flush per batch rather than one per transaction.
+ * </p>
+ * <p>
+ * A batch is started when the first transaction arrives, and finishes once
+ * either it contains the maximum number of transactions or the maximum linger
+ * time has elapsed. Keys and values can be added from any thread, and reads
+ * are passed straight through to the underlying ledger. This requires that the
+ * underlying ledger supports concurrent readers alongside a single writer.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class GroupCommitLedger<K, V extends Value.Interned<K, V>> implements Ledger<K, V>, Closeable {
+	/**
+	 * The underlying ledger.
+	 */
+	private final Ledger<K, V> ledger;
+	/**
+	 * Serialises all writes to the underlying ledger, such that it only ever sees
+	 * a single writer at a time.
+	 */
+	private final Object lock = new Object();
+	/**
+	 * Ensures transactions cannot be submitted once this ledger has been closed.
+	 * Otherwise, a transaction could be submitted after the committer has
+	 * finished, and never be committed.
+	 */
+	private final Object state = new Object();
+	/**
+	 * Transactions waiting to be committed.
+	 */
+	private final BlockingQueue<Pending<K, V>> queue = new LinkedBlockingQueue<>();
+	/**
+	 * The maximum number of transactions in a single batch.
+	 */
+	private final int maxBatchSize;
+	/**
+	 * The maximum time (in nanoseconds) a batch will wait for further
+	 * transactions before being committed.
+	 */
+	private final long maxLinger;
+	/**
+	 * The thread responsible for committing batches.
+	 */
+	private final Thread committer;
+	/**
+	 * Indicates whether this ledger has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Construct a group commit ledger.
+	 *
+	 * @param ledger       The underlying ledger.
+	 * @param maxBatchSize The maximum number of transactions in a single batch.
+	 * @param maxLinger    The maximum time a batch waits for further
+	 *                     transactions.
+	 * @param unit         The unit of <code>maxLinger</code>.
+	 */
+	public GroupCommitLedger(Ledger<K, V> ledger, int maxBatchSize, long maxLinger, TimeUnit unit) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("invalid batch size");
+		} else if (maxLinger < 0) {
+			throw new IllegalArgumentException("invalid linger time");
+		}
+		this.ledger = ledger;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLinger = unit.toNanos(maxLinger);
+		this.committer = new Thread(this::run, "ledger-committer");
+		this.committer.setDaemon(true);
+		this.committer.start();
+	}
+
+	@Override
+	public V get(K key) {
+		return ledger.get(key);
+	}
+
+	@Override
+	public V get(int timestamp, K key) {
+		return ledger.get(timestamp, key);
+	}
+
+	@Override
+	public K lookup(String key) {
+		return ledger.lookup(key);
+	}
+
+	@Override
+	public K add(String key) {
+		synchronized (lock) {
+			return ledger.add(key);
+		}
+	}
+
+	@Override
+	public V add(Value value) {
+		synchronized (lock) {
+			return ledger.add(value);
+		}
+	}
+
+	@Override
+	public V add(K key, Value value) {
+		synchronized (lock) {
+			return ledger.add(key, value);
+		}
+	}
+
+	/**
+	 * Apply a sequence of key/value assignments as a single atomic transaction,
+	 * blocking until it has been committed.
+	 *
+	 * @param txn
+	 */
+	@Override
+	@SafeVarargs
+	public final void add(Pair<K, V>... txn) {
+		submit(txn).join();
+	}
+
+	/**
+	 * Submit a sequence of key/value assignments to be applied as a single atomic
+	 * transaction. This returns immediately with a handle which completes once
+	 * the transaction has been committed, or completes exceptionally if flushing
+	 * the ledger failed.
+	 *
+	 * @param txn
+	 * @return
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final CompletableFuture<Void> submit(Pair<K, V>... txn) {
+		Pending<K, V> p = new Pending<>(txn);
+		synchronized (state) {
+			if (closed) {
+				throw new IllegalStateException("ledger is closed");
+			}
+			queue.add(p);
+		}
+		return p.future;
+	}
+
+	/**
+	 * Stop accepting transactions, and wait for all those already submitted to be
+	 * committed. This does not close the underlying ledger.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (state) {
+			closed = true;
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private void run() {
+		ArrayList<Pending<K, V>> batch = new ArrayList<>();
+		try {
+			while (!closed || !queue.isEmpty()) {
+				// Wait for a batch to start
+				Pending<K, V> p = queue.poll(10, TimeUnit.MILLISECONDS);
+				if (p == null) {
+					continue;
+				}
+				batch.add(p);
+				// Gather more until batch is full or has lingered long enough
+				long deadline = System.nanoTime() + maxLinger;
+				while (batch.size() < maxBatchSize) {
+					long remaining = deadline - System.nanoTime();
+					p = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (p == null) {
+						break;
+					}
+					batch.add(p);
+				}
+				commit(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// Fail anything which will now never be committed
+			IllegalStateException ex = new IllegalStateException("committer interrupted");
+			for (Pending<K, V> p : batch) {
+				p.future.completeExceptionally(ex);
+			}
+		} catch (Throwable e) {
+			// Fail the batch in flight, rather than leaving it waiting forever. Any
+			// already completed are unaffected.
+			for (Pending<K, V> p : batch) {
+				p.future.completeExceptionally(e);
+			}
+			throw e;
+		} finally {
+			// Prevent further submissions, since nothing will commit them
+			synchronized (state) {
+				closed = true;
+			}
+			IllegalStateException ex = new IllegalStateException("ledger is closed");
+			for (Pending<K, V> p = queue.poll(); p != null; p = queue.poll()) {
+				p.future.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/**
+	 * Append a batch of transactions to the underlying ledger, flush it, and then
+	 * complete them. A transaction which cannot be appended fails on its own,
+	 * without affecting the rest of the batch. Those which were appended complete
+	 * once the flush succeeds, or all fail if it does not.
+	 *
+	 * @param batch
+	 */
+	private void commit(ArrayList<Pending<K, V>> batch) {
+		Throwable[] errors = new Throwable[batch.size()];
+		Throwable error = null;
+		synchronized (lock) {
+			for (int i = 0; i != batch.size(); ++i) {
+				try {
+					ledger.add(batch.get(i).txn);
+				} catch (RuntimeException e) {
+					errors[i] = e;
+				}
+			}
+			try {
+				if (ledger instanceof Flushable) {
+					((Flushable) ledger).flush();
+				}
+			} catch (IOException | RuntimeException e) {
+				error = e;
+			}
+		}
+		for (int i = 0; i != batch.size(); ++i) {
+			CompletableFuture<Void> f = batch.get(i).future;
+			if (errors[i] != null) {
+				f.completeExceptionally(errors[i]);
+			} else if (error != null) {
+				f.completeExceptionally(error);
+			} else {
+				f.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * A transaction which has been submitted but not yet committed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static final class Pending<K, V> {
+		private final Pair<K, V>[] txn;
+		private final CompletableFuture<Void> future;
+
+		public Pending(Pair<K, V>[] txn) {
+			this.txn = txn;
+			this.future = new CompletableFuture<>();
+		}
+	}
+}
@@ -14,10 +14,15 @@
 package jledger.util;
 
 import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jledger.core.Key;
+import jledger.core.Query;
 
 /**
  * <p>
@@ -32,17 +37,51 @@ import jledger.core.Key;
  * possible paths and all possible instances of <code>Trie</code> extend this.
  * </p>
  * <p>
- * <b>NOTE:</b> the implementation does not currently attempt to garbage collect
- * tries. Therefore, the memory consumed is proportional to the total number of
- * distinct tries created throughout the program's life.
+ * Tries can be created concurrently from any number of threads. The children
+ * of each node are held in an immutable sorted array, which is replaced
+ * atomically (by compare-and-set) whenever a child is added. Thus, finding an
+ * existing child never blocks, and two threads racing to add the same child
+ * always end up with the same instance.
+ * </p>
+ * <p>
+ * Since copying a sorted array for every new child is quadratic, a node which
+ * has more than a handful of children switches to an open-addressing hash table
+ * instead. Slots of the table are filled by compare-and-set, and the table is
+ * resized by first sealing every empty slot (so that no further children can be
+ * added to it) and then publishing a larger copy. Children can still be
+ * traversed in sorted order using <code>children()</code>.
+ * </p>
+ * <p>
+ * By default, tries are never garbage collected. Therefore, the memory consumed
+ * is proportional to the total number of distinct tries created throughout the
+ * program's life. To limit this, the components of new tries are interned so
+ * that equal components (e.g. <code>src</code>) share the same string.
+ * Furthermore, tries can be made <i>reclaimable</i> (see
+ * <code>setReclaimable()</code>), in which case a node only refers weakly to its
+ * children. Since a child always refers strongly to its parent, any trie which
+ * is unreachable (along with its descendants) can then be reclaimed. This
+ * cannot break identity, as no other instance for the same path can exist
+ * whilst it is reachable.
  * </p>
  *
  * @author David J. Pearce
  *
  */
-public final class Trie implements Key {
+public final class Trie implements Key, Query {
+
+	private static final Object[] NO_CHILDREN = new Object[0];
 
-	private static final Trie[] ONE_CHILD = new Trie[1];
+	/**
+	 * The maximum number of children held in a sorted array. Beyond this, a hash
+	 * table is used instead.
+	 */
+	private static final int MAX_SORTED_CHILDREN = 16;
+
+	/**
+	 * Marks a slot in a hash table which has been sealed, such that the table is
+	 * being replaced.
+	 */
+	private static final Trie MOVED = new Trie(null, "");
 
 	// =========================================================
 	// Public Constants
@@ -50,6 +89,11 @@ public final class Trie implements Key {
 
 	public static final Trie ROOT = new Trie(null,"");
 
+	/**
+	 * Determines whether newly created tries are held weakly by their parents.
+	 */
+	private static volatile boolean reclaimable = false;
+
 	// =========================================================
 	// Private State
 	// =========================================================
@@ -58,8 +102,21 @@ public final class Trie implements Key {
 	private final String component;
 	private final int depth;
 	private final boolean isConcrete;
-	private Trie[] children;
-	private int nchildren;
+	/**
+	 * The hash code of this trie, which is computed on construction since it
+	 * depends only on the path.
+	 */
+	private final int hash;
+	/**
+	 * Either a sorted array of children, or a <code>Table</code>. Each child is
+	 * held either directly, or by a <code>Child</code> reference.
+	 */
+	private volatile Object children;
+	private TriePattern pattern;
+	/**
+	 * The string representation of this trie, which is built on demand.
+	 */
+	private String path;
 
 	// =========================================================
 	// Public Methods
@@ -74,10 +131,10 @@ public final class Trie implements Key {
 		} else {
 			this.depth = -1;
 		}
-		this.children = ONE_CHILD;
-		this.nchildren = 0;
+		this.children = NO_CHILDREN;
 		this.isConcrete = (parent == null || parent.isConcrete)
 				&& !component.contains("*");
+		this.hash = (parent == null) ? component.hashCode() : component.hashCode() ^ parent.hash;
 	}
 
 	@Override
@@ -167,11 +224,7 @@ public final class Trie implements Key {
 
 	@Override
 	public int hashCode() {
-		int hc = component.hashCode();
-		if(parent != null) {
-			hc = hc ^ parent.hashCode();
-		}
-		return hc;
+		return hash;
 	}
 
 	@Override
@@ -179,28 +232,127 @@ public final class Trie implements Key {
 		return this == o;
 	}
 
+	/**
+	 * Check whether a given key is matched by this trie, when viewed as a pattern.
+	 * Here, <code>*</code> matches any single component and <code>**</code>
+	 * matches zero or more components.
+	 *
+	 * @param id
+	 * @return
+	 */
 	@Override
-	public Trie append(final String component) {
-		int index = binarySearch(children, nchildren, component);
-		if(index >= 0) {
-			return children[index];
-		}
+	public boolean matches(Key id) {
+		return compile().matches(id);
+	}
 
-		Trie nt = new Trie(this,component);
-		index = -index - 1; // calculate insertion point
+	@Override
+	public boolean matchesSubpath(Key id) {
+		return compile().matchesSubpath(id);
+	}
 
-		if((nchildren+1) < children.length) {
-			System.arraycopy(children, index, children, index+1, nchildren - index);
-		} else {
-			Trie[] tmp = new Trie[children.length * 2];
-			System.arraycopy(children, 0, tmp, 0, index);
-			System.arraycopy(children, index, tmp, index+1, nchildren - index);
-			children = tmp;
+	/**
+	 * Compile this trie, when viewed as a pattern, into a query which can be
+	 * matched efficiently. The result is cached.
+	 *
+	 * @return
+	 */
+	public TriePattern compile() {
+		TriePattern p = pattern;
+		if (p == null) {
+			// Benign race, since patterns are immutable
+			p = new TriePattern(this);
+			pattern = p;
+		}
+		return p;
+	}
+
+	/**
+	 * Get the children of this trie, sorted by component.
+	 *
+	 * @return
+	 */
+	public Trie[] children() {
+		Object cs = children;
+		Object[] entries = (cs instanceof Table) ? ((Table) cs).toSortedArray() : (Object[]) cs;
+		Trie[] result = new Trie[entries.length];
+		int n = 0;
+		for (int i = 0; i != entries.length; ++i) {
+			Trie t = trieOf(entries[i]);
+			if (t != null) {
+				result[n++] = t;
+			}
 		}
+		return (n == result.length) ? result : Arrays.copyOf(result, n);
+	}
 
-		children[index] = nt;
-		nchildren++;
-		return nt;
+	@Override
+	public Trie append(final String component) {
+		Trie nt = null;
+		Object entry = null;
+		while (true) {
+			final Object cs = this.children;
+			if (cs instanceof Table) {
+				// Hashed children
+				Table table = (Table) cs;
+				Trie t = table.find(component, 0, component.length());
+				if (t == null) {
+					if (nt == null) {
+						nt = new Trie(this, component.intern());
+						entry = entryOf(nt);
+					}
+					t = table.insert(entry);
+				}
+				if (t != null && t != MOVED) {
+					return t;
+				}
+				// Table is full or sealed, so help replace it
+				CHILDREN.compareAndSet(this, cs, table.resize());
+				continue;
+			}
+			final Object[] children = (Object[]) cs;
+			int index = binarySearch(children, children.length, component);
+			if (index >= 0) {
+				Trie t = trieOf(children[index]);
+				if (t != null) {
+					return t;
+				}
+				// Otherwise, child was reclaimed and is replaced below
+			}
+			if (nt == null) {
+				nt = new Trie(this, component.intern());
+				entry = entryOf(nt);
+			}
+			int insert = (index >= 0) ? index : -index - 1; // calculate insertion point
+			// Copy children, dropping any which have been reclaimed
+			Object[] arr = new Object[children.length + 1];
+			int n = 0;
+			for (int i = 0; i != children.length; ++i) {
+				if (i == insert) {
+					arr[n++] = entry;
+				}
+				if (i != index && trieOf(children[i]) != null) {
+					arr[n++] = children[i];
+				}
+			}
+			if (insert == children.length) {
+				arr[n++] = entry;
+			}
+			Object tmp;
+			if (n <= MAX_SORTED_CHILDREN) {
+				tmp = (n == arr.length) ? arr : Arrays.copyOf(arr, n);
+			} else {
+				// Switch to hashed children
+				Table table = new Table(n * 4);
+				for (int i = 0; i != n; ++i) {
+					table.insert(arr[i]);
+				}
+				tmp = table;
+			}
+			// Publish new children, unless another thread got there first
+			if (CHILDREN.compareAndSet(this, cs, tmp)) {
+				return nt;
+			}
+		}
 	}
 
 	@Override
@@ -215,32 +367,61 @@ public final class Trie implements Key {
 
 	@Override
 	public String toString() {
-		if(parent == null || parent == ROOT) {
-			return component;
-		} else {
-			return parent.toString() + "/" + component;
+		String p = path;
+		if (p == null) {
+			// Benign race, since strings are immutable
+			p = render('/');
+			path = p;
 		}
+		return p;
 	}
 
 	public String toNativeString() {
-		if(parent == null || parent == ROOT) {
-			return component;
-		} else {
-			return parent.toString() + File.separatorChar + component;
-		}
+		return (File.separatorChar == '/') ? toString() : render(File.separatorChar);
 	}
 
 	/**
-	 * Construct a Trie from a string, where '/' is the separator.
-	 * s
+	 * Determine whether tries created from now on can be reclaimed once they are
+	 * unreachable. This does not affect tries which already exist.
+	 *
+	 * @param flag
+	 */
+	public static void setReclaimable(boolean flag) {
+		reclaimable = flag;
+	}
+
+	public static boolean isReclaimable() {
+		return reclaimable;
+	}
+
+	/**
+	 * Construct a Trie from a string, where '/' is the separator. As for
+	 * <code>String.split()</code>, trailing empty components are ignored. The
+	 * string is parsed in place, and a new component string is only allocated
+	 * when a new trie must be created.
+	 *
 	 * @param str
 	 * @return
 	 */
-	public static Trie fromString(String str) {
-		String[] components = str.split("/");
+	public static Trie fromString(CharSequence str) {
+		int end = str.length();
+		if (end == 0) {
+			return ROOT.append("");
+		}
+		// Ignore trailing separators
+		while (end > 0 && str.charAt(end - 1) == '/') {
+			end = end - 1;
+		}
 		Trie r = ROOT;
-		for(int i=0;i!=components.length;++i) {
-			r = r.append(components[i]);
+		int start = 0;
+		while (start < end) {
+			int next = start;
+			while (next < end && str.charAt(next) != '/') {
+				next = next + 1;
+			}
+			Trie child = r.find(str, start, next);
+			r = (child != null) ? child : r.append(str.subSequence(start, next).toString());
+			start = next + 1;
 		}
 		return r;
 	}
@@ -283,40 +464,39 @@ public final class Trie implements Key {
 	// Private Methods
 	// =========================================================
 
-	private boolean match(Key id, int idIndex, int myIndex, boolean submatch) {
-		int mySize = depth + 1;
-		if (myIndex == mySize && idIndex == id.size()) {
-			return true;
-		} else if(idIndex == id.size()) {
-			return submatch;
-		} else if (myIndex == mySize) {
-			return false;
-		}
-
-		String myComponent = get(myIndex);
-		if (myComponent.equals("*")) {
-			return match(id, idIndex + 1, myIndex + 1, submatch);
-		} else if (myComponent.equals("**")) {
-			myIndex++;
-			for (int i = idIndex; i <= id.size(); ++i) {
-				if (match(id, i, myIndex, submatch)) {
-					return true;
-				}
-			}
-			return false;
+	/**
+	 * Find the existing child whose component matches a given region of a
+	 * character sequence.
+	 *
+	 * @param str   The character sequence.
+	 * @param start Index of the first character of the component.
+	 * @param end   Index following the last character of the component.
+	 * @return The child, or <code>null</code> if there is no such child.
+	 */
+	private Trie find(CharSequence str, int start, int end) {
+		final Object cs = children;
+		if (cs instanceof Table) {
+			Trie t = ((Table) cs).find(str, start, end);
+			return (t == MOVED) ? null : t;
 		} else {
-			return myComponent.equals(id.get(idIndex))
-					&& match(id, idIndex + 1, myIndex + 1, submatch);
+			Object[] children = (Object[]) cs;
+			int index = binarySearch(children, children.length, str, start, end);
+			return (index >= 0) ? trieOf(children[index]) : null;
 		}
 	}
 
-	private static final int binarySearch(final Trie[] children, final int nchildren, final String key) {
+	private static final int binarySearch(final Object[] children, final int nchildren, final String key) {
+		return binarySearch(children, nchildren, key, 0, key.length());
+	}
+
+	private static final int binarySearch(final Object[] children, final int nchildren, final CharSequence key,
+			final int start, final int end) {
 		int low = 0;
         int high = nchildren-1;
 
         while (low <= high) {
             int mid = (low + high) >> 1;
-            int c = children[mid].component.compareTo(key);
+            int c = compare(componentOf(children[mid]), key, start, end);
 
             if (c < 0) {
                 low = mid + 1;
@@ -329,6 +509,242 @@ public final class Trie implements Key {
         return -(low + 1);
 	}
 
+	/**
+	 * Render this trie as a string, using a given separator between components.
+	 *
+	 * @param separator
+	 * @return
+	 */
+	private String render(char separator) {
+		if (parent == null || parent == ROOT) {
+			return component;
+		}
+		int length = component.length();
+		for (Trie t = parent; t != ROOT; t = t.parent) {
+			length += t.component.length() + 1;
+		}
+		StringBuilder sb = new StringBuilder(length);
+		render(sb, separator);
+		return sb.toString();
+	}
+
+	private void render(StringBuilder sb, char separator) {
+		if (parent != ROOT) {
+			parent.render(sb, separator);
+			sb.append(separator);
+		}
+		sb.append(component);
+	}
+
+	private static String componentOf(Object entry) {
+		return (entry instanceof Child) ? ((Child) entry).component : ((Trie) entry).component;
+	}
+
+	/**
+	 * Get the trie held by a given entry, or <code>null</code> if it has been
+	 * reclaimed.
+	 */
+	private static Trie trieOf(Object entry) {
+		return (entry instanceof Child) ? ((Child) entry).get() : (Trie) entry;
+	}
+
+	private static Object entryOf(Trie trie) {
+		return reclaimable ? new Child(trie) : trie;
+	}
+
+	/**
+	 * Compare a string against a region of a character sequence, in the same
+	 * manner as <code>String.compareTo()</code>.
+	 */
+	private static int compare(final String component, final CharSequence key, final int start, final int end) {
+		final int n = Math.min(component.length(), end - start);
+		for (int i = 0; i != n; ++i) {
+			int c = component.charAt(i) - key.charAt(start + i);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return component.length() - (end - start);
+	}
+
+	/**
+	 * Provides atomic access to the <code>children</code> field.
+	 */
+	private static final VarHandle CHILDREN;
+
+	static {
+		try {
+			CHILDREN = MethodHandles.lookup().findVarHandle(Trie.class, "children", Object.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Provides atomic access to the slots of a <code>Table</code>.
+	 */
+	private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	/**
+	 * A weak reference to a reclaimable child. This retains the child's component,
+	 * so that it can still be searched for once the child has been reclaimed.
+	 */
+	private static final class Child extends WeakReference<Trie> {
+		private final String component;
+
+		public Child(Trie trie) {
+			super(trie);
+			this.component = trie.component;
+		}
+	}
+
+	/**
+	 * An open-addressing hash table of children, keyed by component. Slots are
+	 * only ever filled (or sealed) by compare-and-set, and the table is kept at
+	 * most half full. A slot whose child has been reclaimed is never refilled,
+	 * since the table may be concurrently copied by a resize. Instead, a new child
+	 * with the same component is placed in a later slot, and reclaimed children
+	 * are dropped when the table is next resized.
+	 */
+	private static final class Table {
+		private final Object[] slots;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Table(int capacity) {
+			int n = 8;
+			while (n < capacity) {
+				n = n * 2;
+			}
+			this.slots = new Object[n];
+		}
+
+		/**
+		 * Find the child whose component matches a given region of a character
+		 * sequence. This returns <code>null</code> if there is no such child, or
+		 * <code>MOVED</code> if the table has been sealed.
+		 *
+		 * @param str
+		 * @param start
+		 * @param end
+		 * @return
+		 */
+		public Trie find(CharSequence str, int start, int end) {
+			final int mask = slots.length - 1;
+			for (int i = hash(str, start, end) & mask;; i = (i + 1) & mask) {
+				Object e = SLOTS.getAcquire(slots, i);
+				if (e == null || e == MOVED) {
+					return (Trie) e;
+				} else if (compare(componentOf(e), str, start, end) == 0) {
+					Trie t = trieOf(e);
+					if (t != null) {
+						return t;
+					}
+					// Reclaimed, so a replacement may follow
+				}
+			}
+		}
+
+		/**
+		 * Insert a new child, unless a child with the same component already
+		 * exists. This returns the child now in the table, or <code>null</code> if
+		 * the table is full, or <code>MOVED</code> if the table has been sealed.
+		 *
+		 * @param entry
+		 * @return
+		 */
+		public Trie insert(Object entry) {
+			if (count.get() >= (slots.length >> 1)) {
+				return null;
+			}
+			final String component = componentOf(entry);
+			final int mask = slots.length - 1;
+			int i = hash(component) & mask;
+			for (int n = 0; n <= mask;) {
+				Object e = SLOTS.getAcquire(slots, i);
+				if (e == null) {
+					if (SLOTS.compareAndSet(slots, i, null, entry)) {
+						count.incrementAndGet();
+						return trieOf(entry);
+					}
+					// Lost the race for this slot, so check it again
+				} else if (e == MOVED) {
+					return MOVED;
+				} else {
+					Trie t = componentOf(e).equals(component) ? trieOf(e) : null;
+					if (t != null) {
+						return t;
+					}
+					// Either a different or a reclaimed child, so keep probing
+					i = (i + 1) & mask;
+					n = n + 1;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Seal this table and construct a larger copy of it, dropping any children
+		 * which have been reclaimed. Sealing ensures no child can be added after
+		 * being copied, so any number of threads can resize the same table and
+		 * will produce the same result.
+		 *
+		 * @return
+		 */
+		public Table resize() {
+			Table table = new Table(slots.length * 2);
+			for (int i = 0; i != slots.length; ++i) {
+				Object e = SLOTS.compareAndExchange(slots, i, null, MOVED);
+				if (e != null && e != MOVED && trieOf(e) != null) {
+					table.insert(e);
+				}
+			}
+			return table;
+		}
+
+		/**
+		 * Get the entries of this table, sorted by component.
+		 *
+		 * @return
+		 */
+		public Object[] toSortedArray() {
+			Object[] entries = new Object[slots.length];
+			int n = 0;
+			for (int i = 0; i != slots.length; ++i) {
+				Object e = SLOTS.getAcquire(slots, i);
+				if (e != null && e != MOVED) {
+					entries[n++] = e;
+				}
+			}
+			entries = Arrays.copyOf(entries, n);
+			Arrays.sort(entries, (a, b) -> componentOf(a).compareTo(componentOf(b)));
+			return entries;
+		}
+
+		private static int hash(String component) {
+			return spread(component.hashCode());
+		}
+
+		/**
+		 * Hash a region of a character sequence, such that the result is the same
+		 * as hashing the equivalent string.
+		 */
+		private static int hash(CharSequence str, int start, int end) {
+			if (start == 0 && end == str.length() && str instanceof String) {
+				return hash((String) str);
+			}
+			int hash = 0;
+			for (int i = start; i != end; ++i) {
+				hash = 31 * hash + str.charAt(i);
+			}
+			return spread(hash);
+		}
+
+		private static int spread(int hash) {
+			// Spread higher bits downwards, since the table is indexed by low bits.
+			return hash ^ (hash >>> 16);
+		}
+	}
+
 	private static final class InternalIterator implements Iterator<String> {
 		private final Trie id;
 		private int index;
@@ -0,0 +1,301 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import jledger.core.Key;
+import jledger.core.Query;
+
+/**
+ * <p>
+ * A query compiled from a <code>Trie</code> pattern, where <code>*</code>
+ * matches any single component and <code>**</code> matches zero or more
+ * components. The pattern is compiled into a nondeterministic automaton over
+ * path components, whose states correspond to the number of pattern components
+ * matched so far. For patterns of up to 63 components, the set of active states
+ * is held in a single <code>long</code> and keys are matched in a single left
+ * to right pass, without backtracking or allocation. Longer patterns are
+ * matched in the same way, but with the set of active states spread over an
+ * array of <code>long</code>s.
+ * </p>
+ * <p>
+ * A key is matched as a subpath when some state remains active after its last
+ * component, since it can then be extended into a match. This allows a
+ * hierarchical store to skip any subtree whose key has no active states.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class TriePattern implements Query {
+	/**
+	 * The components of the pattern. Wildcards are represented by
+	 * <code>null</code>.
+	 */
+	private final String[] components;
+	/**
+	 * States whose next component is <code>*</code>, one bit per state.
+	 */
+	private final long[] anyMask;
+	/**
+	 * States whose next component is <code>**</code>, one bit per state.
+	 */
+	private final long[] globMask;
+	/**
+	 * States whose next component is a literal, one bit per state.
+	 */
+	private final long[] literalMask;
+	/**
+	 * The states active before any component has been matched.
+	 */
+	private final long[] start;
+
+	public TriePattern(Trie pattern) {
+		final int n = pattern.size();
+		// One state per component, plus the accepting state
+		final int words = (n >> 6) + 1;
+		this.components = new String[n];
+		this.anyMask = new long[words];
+		this.globMask = new long[words];
+		this.literalMask = new long[words];
+		for (Trie t = pattern; t != Trie.ROOT; t = t.parent()) {
+			int i = t.size() - 1;
+			String c = t.last();
+			if (c.equals("*")) {
+				anyMask[i >> 6] |= 1L << i;
+			} else if (c.equals("**")) {
+				globMask[i >> 6] |= 1L << i;
+			} else {
+				literalMask[i >> 6] |= 1L << i;
+				components[i] = c;
+			}
+		}
+		this.start = new long[words];
+		this.start[0] = 1L;
+		close(start);
+	}
+
+	@Override
+	public boolean matches(Key id) {
+		if (isSingleWord()) {
+			return accepts(run(id));
+		} else {
+			long[] states = runAll(id);
+			return states != null && get(states, components.length);
+		}
+	}
+
+	@Override
+	public boolean matchesSubpath(Key id) {
+		if (isSingleWord()) {
+			return run(id) != 0;
+		} else {
+			return runAll(id) != null;
+		}
+	}
+
+	/**
+	 * Check whether the states of this pattern fit into a single
+	 * <code>long</code>. Only then can they be manipulated using
+	 * <code>start()</code>, <code>step()</code> and <code>accepts()</code>.
+	 *
+	 * @return
+	 */
+	boolean isSingleWord() {
+		return start.length == 1;
+	}
+
+	/**
+	 * Get the states active before any component has been matched.
+	 *
+	 * @return
+	 */
+	long start() {
+		return start[0];
+	}
+
+	/**
+	 * Determine the states active after matching a given component from a given
+	 * set of states. Once no states are active, none ever will be again.
+	 *
+	 * @param states    The currently active states.
+	 * @param component The next component of the key.
+	 * @return
+	 */
+	long step(long states, String component) {
+		// Wildcards advance on anything, and "**" can also stay put
+		long next = ((states & anyMask[0]) << 1) | (states & globMask[0]);
+		// Literals advance only on an exact match
+		for (long s = states & literalMask[0]; s != 0; s &= s - 1) {
+			int i = Long.numberOfTrailingZeros(s);
+			if (components[i].equals(component)) {
+				next |= 1L << (i + 1);
+			}
+		}
+		return close(next);
+	}
+
+	/**
+	 * Check whether a given set of states includes the accepting state.
+	 *
+	 * @param states
+	 * @return
+	 */
+	boolean accepts(long states) {
+		return (states & (1L << components.length)) != 0;
+	}
+
+	private long run(Key id) {
+		if (id instanceof Trie) {
+			return run((Trie) id);
+		}
+		long states = start[0];
+		for (int i = 0; i != id.size() && states != 0; ++i) {
+			states = step(states, id.get(i));
+		}
+		return states;
+	}
+
+	private long run(Trie id) {
+		if (id == Trie.ROOT) {
+			return start[0];
+		}
+		// Match the parent first, giving a left to right pass
+		long states = run(id.parent());
+		return (states == 0) ? 0 : step(states, id.last());
+	}
+
+	/**
+	 * Since "**" can match zero components, any state preceding it implies the
+	 * state following it. Processing them in order handles consecutive
+	 * occurrences.
+	 *
+	 * @param states
+	 * @return
+	 */
+	private long close(long states) {
+		for (long s = globMask[0]; s != 0; s &= s - 1) {
+			long bit = s & -s;
+			if ((states & bit) != 0) {
+				states |= bit << 1;
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Match a given key against a pattern whose states span more than one
+	 * <code>long</code>, returning the states active after its last component
+	 * or <code>null</code> if there are none.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private long[] runAll(Key id) {
+		String[] key = new String[id.size()];
+		if (id instanceof Trie) {
+			// Avoid walking up the trie for every component
+			for (Trie t = (Trie) id; t != Trie.ROOT; t = t.parent()) {
+				key[t.size() - 1] = t.last();
+			}
+		} else {
+			for (int i = 0; i != key.length; ++i) {
+				key[i] = id.get(i);
+			}
+		}
+		long[] states = start.clone();
+		long[] next = new long[states.length];
+		for (int i = 0; i != key.length; ++i) {
+			if (!step(states, key[i], next)) {
+				return null;
+			}
+			long[] tmp = states;
+			states = next;
+			next = tmp;
+		}
+		return states;
+	}
+
+	/**
+	 * Determine the states active after matching a given component from a given
+	 * set of states, as for <code>step(long,String)</code> but for states which
+	 * span more than one <code>long</code>.
+	 *
+	 * @param states    The currently active states.
+	 * @param component The next component of the key.
+	 * @param next      The array into which the resulting states are written.
+	 * @return Whether any states remain active.
+	 */
+	private boolean step(long[] states, String component, long[] next) {
+		long carry = 0;
+		for (int w = 0; w != states.length; ++w) {
+			long any = states[w] & anyMask[w];
+			// Wildcards advance on anything, and "**" can also stay put
+			next[w] = (any << 1) | carry | (states[w] & globMask[w]);
+			carry = any >>> 63;
+		}
+		for (int w = 0; w != states.length; ++w) {
+			// Literals advance only on an exact match
+			for (long s = states[w] & literalMask[w]; s != 0; s &= s - 1) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(s);
+				if (components[i].equals(component)) {
+					set(next, i + 1);
+				}
+			}
+		}
+		close(next);
+		for (int w = 0; w != next.length; ++w) {
+			if (next[w] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * As for <code>close(long)</code>, but for states which may span more than
+	 * one <code>long</code>.
+	 *
+	 * @param states
+	 */
+	private void close(long[] states) {
+		for (int w = 0; w != globMask.length; ++w) {
+			for (long s = globMask[w]; s != 0; s &= s - 1) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(s);
+				if (get(states, i)) {
+					set(states, i + 1);
+				}
+			}
+		}
+	}
+
+	private static boolean get(long[] states, int i) {
+		return (states[i >> 6] & (1L << i)) != 0;
+	}
+
+	private static void set(long[] states, int i) {
+		states[i >> 6] |= 1L << i;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != components.length; ++i) {
+			if (i != 0) {
+				sb.append('/');
+			}
+			sb.append(get(anyMask, i) ? "*" : get(globMask, i) ? "**" : components[i]);
+		}
+		return sb.toString();
+	}
+}
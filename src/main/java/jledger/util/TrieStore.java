@@ -0,0 +1,227 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import jledger.core.Query;
+import jledger.core.Store;
+import jledger.core.Value;
+
+/**
+ * <p>
+ * An implementation of Store which organises entries according to the
+ * hierarchy of their keys. Each node of the store corresponds to a
+ * <code>Trie</code>, and holds the value (if any) associated with that key
+ * along with the nodes for its children.
+ * </p>
+ * <p>
+ * This allows queries to be answered without examining every entry. Whilst
+ * walking the store, a subtree is only entered if its key is matched as a
+ * subpath by the query (see <code>Query.matchesSubpath()</code>). Thus, a query
+ * such as <code>src/main/**</code> only touches entries within
+ * <code>src/main</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ * @param <V>
+ */
+public class TrieStore<V extends Value> implements Store<Trie, V> {
+	private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+	/**
+	 * The node corresponding to <code>Trie.ROOT</code>.
+	 */
+	private final Node<V> root = new Node<>(Trie.ROOT);
+
+	/**
+	 * The number of entries in this store.
+	 */
+	private int size;
+
+	@Override
+	public V put(Trie key, V value) {
+		if (!key.isConcrete()) {
+			throw new IllegalArgumentException("key is not concrete (" + key + ")");
+		}
+		Node<V> node = find(key, true);
+		V old = node.value;
+		node.value = value;
+		if (old == null && value != null) {
+			size++;
+		} else if (old != null && value == null) {
+			size--;
+		}
+		return old;
+	}
+
+	@Override
+	public V get(Trie key) {
+		Node<V> node = find(key, false);
+		return (node == null) ? null : node.value;
+	}
+
+	/**
+	 * Get the number of entries in this store.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Select all entries matching a given query, in key order. Subtrees whose
+	 * keys are not matched as subpaths by the query are skipped entirely.
+	 *
+	 * @param q
+	 * @return
+	 */
+	@Override
+	public Iterable<Store.Entry<Trie, V>> select(Query q) {
+		ArrayList<Store.Entry<Trie, V>> results = new ArrayList<>();
+		if (q instanceof Trie) {
+			q = ((Trie) q).compile();
+		}
+		if (q instanceof TriePattern && ((TriePattern) q).isSingleWord()) {
+			// Advance the pattern one component at a time whilst descending
+			TriePattern p = (TriePattern) q;
+			select(root, p, p.start(), results);
+		} else {
+			select(root, q, results);
+		}
+		return results;
+	}
+
+	private void select(Node<V> node, TriePattern p, long states, ArrayList<Store.Entry<Trie, V>> results) {
+		if (node.value != null && p.accepts(states)) {
+			results.add(new Item<>(node.key, node.value));
+		}
+		for (int i = 0; i != node.nchildren; ++i) {
+			Node<V> child = node.children[i];
+			long next = p.step(states, child.key.last());
+			if (next != 0) {
+				select(child, p, next, results);
+			}
+		}
+	}
+
+	private void select(Node<V> node, Query q, ArrayList<Store.Entry<Trie, V>> results) {
+		if (node.value != null && q.matches(node.key)) {
+			results.add(new Item<>(node.key, node.value));
+		}
+		for (int i = 0; i != node.nchildren; ++i) {
+			Node<V> child = node.children[i];
+			if (q.matchesSubpath(child.key)) {
+				select(child, q, results);
+			}
+		}
+	}
+
+	/**
+	 * Find the node corresponding to a given key, optionally creating it (and any
+	 * enclosing nodes) if it does not exist.
+	 *
+	 * @param key
+	 * @param create
+	 * @return The node, or <code>null</code> if it does not exist and was not
+	 *         created.
+	 */
+	private Node<V> find(Trie key, boolean create) {
+		if (key == Trie.ROOT) {
+			return root;
+		}
+		Node<V> parent = find(key.parent(), create);
+		if (parent == null) {
+			return null;
+		}
+		int index = parent.indexOf(key.last());
+		if (index >= 0) {
+			return parent.children[index];
+		} else if (!create) {
+			return null;
+		} else {
+			return parent.insert(-index - 1, new Node<>(key));
+		}
+	}
+
+	/**
+	 * A node in the store, whose children are sorted by their last component.
+	 *
+	 * @param <V>
+	 */
+	private static final class Node<V> {
+		private final Trie key;
+		private V value;
+		private Node<V>[] children;
+		private int nchildren;
+
+		@SuppressWarnings("unchecked")
+		public Node(Trie key) {
+			this.key = key;
+			this.children = (Node<V>[]) NO_CHILDREN;
+		}
+
+		public int indexOf(String component) {
+			int low = 0;
+			int high = nchildren - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = children[mid].key.last().compareTo(component);
+				if (c < 0) {
+					low = mid + 1;
+				} else if (c > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		public Node<V> insert(int index, Node<V> child) {
+			if (nchildren == children.length) {
+				children = Arrays.copyOf(children, Math.max(2, nchildren * 2));
+			}
+			System.arraycopy(children, index, children, index + 1, nchildren - index);
+			children[index] = child;
+			nchildren++;
+			return child;
+		}
+	}
+
+	/**
+	 * An entry returned from a query. This is a snapshot of the entry at the time
+	 * of the query.
+	 *
+	 * @param <V>
+	 */
+	private static final class Item<V extends Value> extends Pair<Trie, V> implements Store.Entry<Trie, V> {
+		public Item(Trie key, V value) {
+			super(key, value);
+		}
+
+		@Override
+		public Trie getKey() {
+			return first;
+		}
+
+		@Override
+		public V getValue() {
+			return second;
+		}
+	}
+}
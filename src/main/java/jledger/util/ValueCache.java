@@ -0,0 +1,223 @@
+// Copyright 2020 David J. Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jledger.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A bounded cache of materialised values, keyed by packet identifier. This
+ * allows values which must be reconstructed from a chain of diffs to be read
+ * at array-access speed once they are hot. Entries are evicted once the total
+ * number of cached bytes exceeds a given budget.
+ * </p>
+ * <p>
+ * Lookups never lock, so that concurrent readers of the same hot values do not
+ * contend with each other. Instead, eviction follows the CLOCK algorithm: each
+ * lookup simply marks the entry it finds as referenced, and entries are
+ * considered for eviction in the order they were added. A referenced entry is
+ * given a second chance (by clearing its mark), whilst an unreferenced one is
+ * evicted. Adding entries is serialised, since it only happens when a value
+ * must be materialised anyway.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class ValueCache {
+	/**
+	 * The cached values.
+	 */
+	private final ConcurrentHashMap<Integer, Entry> entries;
+	/**
+	 * The identifiers of all cached values, in the order they will next be
+	 * considered for eviction. This is only accessed whilst holding the lock.
+	 */
+	private final ArrayDeque<Integer> clock;
+	/**
+	 * The maximum number of bytes which can be cached.
+	 */
+	private volatile long budget;
+	/**
+	 * The number of bytes currently cached. This is only written whilst holding
+	 * the lock.
+	 */
+	private volatile long used;
+	/**
+	 * The number of lookups which found a cached value.
+	 */
+	private final LongAdder hits = new LongAdder();
+	/**
+	 * The number of values which were cached after a lookup did not find them.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	public ValueCache(long budget) {
+		this.entries = new ConcurrentHashMap<>();
+		this.clock = new ArrayDeque<>();
+		this.budget = budget;
+	}
+
+	/**
+	 * Get the cached bytes of a given value, or <code>null</code> if it is not
+	 * cached. Finding the value is counted as a hit. Not finding it is only
+	 * counted as a miss once the value is subsequently cached, so that values
+	 * which can never be cached do not distort the counters.
+	 *
+	 * @param id The packet identifier of the value.
+	 * @return
+	 */
+	public byte[] get(int id) {
+		Entry e = entries.get(id);
+		if (e == null) {
+			return null;
+		}
+		hits.increment();
+		// Avoid writing shared state when already marked
+		if (!e.referenced) {
+			e.referenced = true;
+		}
+		return e.bytes;
+	}
+
+	/**
+	 * Get the cached bytes of a given value, or <code>null</code> if it is not
+	 * cached. Unlike <code>get()</code>, this is not counted as a lookup and does
+	 * not affect eviction.
+	 *
+	 * @param id The packet identifier of the value.
+	 * @return
+	 */
+	public byte[] peek(int id) {
+		Entry e = entries.get(id);
+		return (e == null) ? null : e.bytes;
+	}
+
+	/**
+	 * Cache the bytes of a given value, evicting older entries as necessary.
+	 * Values larger than the entire budget are not cached. This should follow a
+	 * lookup which did not find the value, and is counted as a miss.
+	 *
+	 * @param id    The packet identifier of the value.
+	 * @param bytes The materialised bytes of the value, which must not be
+	 *              subsequently modified.
+	 */
+	public synchronized void put(int id, byte[] bytes) {
+		if (bytes.length <= budget) {
+			misses.increment();
+			Entry old = entries.put(id, new Entry(bytes));
+			if (old != null) {
+				used -= old.bytes.length;
+			} else {
+				clock.add(id);
+			}
+			used += bytes.length;
+			evict();
+		}
+	}
+
+	/**
+	 * Get the maximum number of bytes which can be cached.
+	 *
+	 * @return
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Set the maximum number of bytes which can be cached, evicting entries as
+	 * necessary. A budget of zero disables the cache.
+	 *
+	 * @param budget
+	 */
+	public synchronized void setBudget(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("invalid cache budget");
+		}
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * Get the number of bytes currently cached.
+	 *
+	 * @return
+	 */
+	public long size() {
+		return used;
+	}
+
+	/**
+	 * Get the number of lookups which found a cached value.
+	 *
+	 * @return
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups which did not find a cached value, but could
+	 * have. Lookups of values larger than the budget are not counted.
+	 *
+	 * @return
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Remove all cached entries and reset the hit and miss counters.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		clock.clear();
+		used = 0;
+		hits.reset();
+		misses.reset();
+	}
+
+	private void evict() {
+		// Bound the sweep, in case readers keep marking entries concurrently
+		int chances = clock.size();
+		while (used > budget && !clock.isEmpty()) {
+			Integer id = clock.poll();
+			Entry e = entries.get(id);
+			if (e.referenced && chances-- > 0) {
+				// Give a second chance
+				e.referenced = false;
+				clock.add(id);
+			} else {
+				entries.remove(id);
+				used -= e.bytes.length;
+			}
+		}
+	}
+
+	/**
+	 * A cached value, along with the mark used to determine whether it has been
+	 * accessed recently.
+	 */
+	private static final class Entry {
+		private final byte[] bytes;
+		private volatile boolean referenced;
+
+		public Entry(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+}